@@ -0,0 +1,226 @@
+package bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+// A small benchmark harness: each case runs a fixed number of operations on each of its
+// threads per iteration, after untimed setup, for a few warmup and then measured iterations.
+// Besides the time per operation it records the bytes each benchmark thread allocated and
+// the garbage collections during the measured iterations.
+final class Bench {
+
+    interface Step {
+        void run() throws Exception;
+    }
+
+    // One operation; i counts the thread's operations in the current iteration
+    interface Op {
+        void run(int thread, int i) throws Exception;
+    }
+
+    // before/after run untimed around every iteration
+    record Case(String name, Map<String, Object> params, int threads, int opsPerThread,
+                Step before, Op op, Step after) {}
+
+    record Result(Case benchmark, double[] nsPerOp, double opsPerSecond, double bytesPerOp,
+                  long gcCount, long gcMillis) {
+
+        double mean() {
+            return Arrays.stream(nsPerOp).average().orElse(Double.NaN);
+        }
+
+        double stdev() {
+            double mean = mean(), sum = 0;
+            for (double v : nsPerOp) sum += (v - mean) * (v - mean);
+            return nsPerOp.length > 1 ? Math.sqrt(sum / (nsPerOp.length - 1)) : 0;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are passed here so the JIT can't drop the work that produced them
+    private static volatile Object marker = new Object();
+    private static int consumed;
+
+    static void consume(Object value) {
+        if (value == marker) consumed++;
+    }
+
+    static void consume(boolean value) {
+        if (value && marker == null) consumed++;
+    }
+
+    // Spreads operation numbers over [0, bound) so threads don't walk the data in step
+    static int index(int thread, int i, int bound) {
+        long x = (((long) thread << 32) | i) * 0x9E3779B97F4A7C15L;
+        x ^= x >>> 29;
+        x *= 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 32;
+        return (int) Long.remainderUnsigned(x, bound);
+    }
+
+    static Result run(Case c, int warmup, int iterations) throws Exception {
+        for (int i = 0; i < warmup; i++) iteration(c);
+
+        long gcCount = -gcCount(), gcMillis = -gcMillis();
+        double[] nsPerOp = new double[iterations];
+        long totalNanos = 0, totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] measured = iteration(c);
+            // per thread, so it's comparable across thread counts as long as nothing contends
+            nsPerOp[i] = (double) measured[0] / c.opsPerThread();
+            totalNanos += measured[0];
+            totalBytes += measured[1];
+        }
+        gcCount += gcCount();
+        gcMillis += gcMillis();
+
+        long ops = (long) iterations * c.threads() * c.opsPerThread();
+        return new Result(c, nsPerOp, ops * 1e9 / Math.max(1, totalNanos), (double) totalBytes / ops,
+                gcCount, gcMillis);
+    }
+
+    // Wall time from the common start to the last thread finishing, and bytes allocated
+    private static long[] iteration(Case c) throws Exception {
+        c.before().run();
+        try {
+            CountDownLatch ready = new CountDownLatch(c.threads());
+            CountDownLatch go = new CountDownLatch(1);
+            long[] ends = new long[c.threads()];
+            long[] bytes = new long[c.threads()];
+            Throwable[] failure = new Throwable[1];
+
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < c.threads(); t++) {
+                int thread = t;
+                Thread worker = new Thread(() -> {
+                    try {
+                        ready.countDown();
+                        go.await();
+                        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+                        for (int i = 0; i < c.opsPerThread(); i++) c.op().run(thread, i);
+                        bytes[thread] = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) failure[0] = e;
+                        }
+                    } finally {
+                        ends[thread] = System.nanoTime();
+                    }
+                }, "bench-" + t);
+                workers.add(worker);
+                worker.start();
+            }
+
+            ready.await();
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread worker : workers) worker.join();
+
+            if (failure[0] != null) {
+                throw new IllegalStateException(c.name() + " failed: " + failure[0], failure[0]);
+            }
+            return new long[]{Arrays.stream(ends).max().orElse(start) - start, Arrays.stream(bytes).sum()};
+        } finally {
+            c.after().run();
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    static Map<String, Object> params(Object... keyValues) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) params.put((String) keyValues[i], keyValues[i + 1]);
+        return params;
+    }
+
+    // ---- reporting ----
+
+    static String table(List<Result> results) {
+        StringBuilder out = new StringBuilder(String.format(Locale.ROOT, "%-22s %-52s %14s %12s %14s %12s%n",
+                "Benchmark", "Params", "ns/op", "stdev", "ops/s", "B/op"));
+        for (Result r : results) {
+            out.append(String.format(Locale.ROOT, "%-22s %-52s %14.1f %12.1f %14.0f %12.1f%n", r.benchmark().name(),
+                    r.benchmark().params(), r.mean(), r.stdev(), r.opsPerSecond(), r.bytesPerOp()));
+        }
+        return out.toString();
+    }
+
+    static String json(List<Result> results, int warmup, int iterations) {
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder out = new StringBuilder("{\n");
+        out.append("  \"jvm\": ").append(quote(System.getProperty("java.vm.name") + " " +
+                System.getProperty("java.runtime.version"))).append(",\n");
+        out.append("  \"os\": ").append(quote(System.getProperty("os.name") + " " +
+                System.getProperty("os.arch"))).append(",\n");
+        out.append("  \"cpus\": ").append(runtime.availableProcessors()).append(",\n");
+        out.append("  \"maxHeapBytes\": ").append(runtime.maxMemory()).append(",\n");
+        out.append("  \"warmupIterations\": ").append(warmup).append(",\n");
+        out.append("  \"iterations\": ").append(iterations).append(",\n");
+        out.append("  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            Case c = r.benchmark();
+            out.append(i == 0 ? "\n" : ",\n").append("    {\"benchmark\": ").append(quote(c.name()));
+            out.append(", \"params\": {");
+            int p = 0;
+            for (Map.Entry<String, Object> param : c.params().entrySet()) {
+                if (p++ > 0) out.append(", ");
+                out.append(quote(param.getKey())).append(": ");
+                out.append(param.getValue() instanceof Number ? param.getValue().toString() : quote(String.valueOf(param.getValue())));
+            }
+            out.append("}, \"threads\": ").append(c.threads());
+            out.append(", \"opsPerThread\": ").append(c.opsPerThread());
+            out.append(", \"nsPerOp\": ").append(number(r.mean()));
+            out.append(", \"nsPerOpStdev\": ").append(number(r.stdev()));
+            out.append(", \"opsPerSecond\": ").append(number(r.opsPerSecond()));
+            out.append(", \"bytesPerOp\": ").append(number(r.bytesPerOp()));
+            out.append(", \"gcCount\": ").append(r.gcCount());
+            out.append(", \"gcMillis\": ").append(r.gcMillis());
+            out.append(", \"rawNsPerOp\": [");
+            for (int j = 0; j < r.nsPerOp().length; j++) {
+                if (j > 0) out.append(", ");
+                out.append(number(r.nsPerOp()[j]));
+            }
+            out.append("]}");
+        }
+        return out.append("\n  ]\n}\n").toString();
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null";
+    }
+
+    private static String quote(String value) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') out.append('\\').append(c);
+            else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+            else out.append(c);
+        }
+        return out.append('"').toString();
+    }
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import entities.Book;
+import storage.LibrarySystem;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Heap taken per title by a loaded catalog: books, their indexes and the full-text index,
+// as a bulk load leaves them with nothing left to save. The titles are synthetic: every
+// title is different, each author has 25 books and there are a dozen genres. Run with
+// enough heap for the largest size:
+//
+//   java -Xmx4g -cp app.jar bench.CatalogFootprint --books=100000,1000000
+public class CatalogFootprint {
+
+    private static final String[] GENRES = {"Fantasy", "Science Fiction", "Mystery", "Romance", "History",
+            "Biography", "Poetry", "Horror", "Travel", "Children", "Philosophy", "Economics"};
+
+    private static final int BATCH = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        String sizes = "1000000";
+        for (String arg : args) {
+            if (!arg.startsWith("--books=")) throw new IllegalArgumentException("Unknown argument " + arg);
+            sizes = arg.substring("--books=".length());
+        }
+
+        LibrarySystem system = LibrarySystem.getInstance();
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (String size : sizes.split(",")) {
+                int n = Integer.parseInt(size.trim());
+                system.clear();
+                long before = usedHeap();
+                load(system, n);
+                long used = usedHeap() - before;
+                report.printf(Locale.ROOT, "%,d titles: %,d KB heap, %d bytes per title%n",
+                        n, used / 1024, n == 0 ? 0 : used / n);
+            }
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private static void load(LibrarySystem system, int n) throws Exception {
+        int authors = Math.max(1, n / 25);
+        system.deferIndexes();
+        List<Book> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < n; i++) {
+            batch.add(new Book("ISBN-" + (9780000000000L + i), "The Title of Book Number " + i,
+                    "Author Name " + (i % authors), GENRES[i % GENRES.length], 3));
+            if (batch.size() == BATCH) {
+                system.addBooks(batch);
+                batch.clear();
+            }
+        }
+        system.addBooks(batch);
+        system.rebuildIndexes();
+        system.getChanges().clear();
+    }
+
+    // After a few full collections, so only what is reachable is counted
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) memory.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,321 @@
+package bench;
+
+import entities.Book;
+import entities.RegularUser;
+import entities.User;
+import storage.DatabaseStorage;
+import storage.LibrarySystem;
+import storage.SqlDialect;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static bench.Bench.consume;
+import static bench.Bench.index;
+import static bench.Bench.params;
+
+// Benchmarks of the library's core operations for each combination of catalog size, user
+// count, borrow history size and thread count. Prints a table and writes the results as JSON
+// (--out) so runs can be compared. Options, all optional:
+//
+//   --books=10000,100000  --users=1000  --history=0,100,1000  --threads=1,4
+//   --ops=20000  --warmup=3  --iterations=5  --filter=<regex>  --out=bench-results.json  --db
+//
+// --db adds saveData/loadData against the embedded SQLite engine. It needs the SQLite driver
+// on the class path, SQLITE_PATH naming a database file that doesn't exist yet, JOURNAL_PATH=off
+// and SNAPSHOT_PATH set to off or a file that doesn't exist yet; those files are deleted after.
+public class LibraryBenchmarks {
+
+    private static final String[] GENRES = {"Fantasy", "Science Fiction", "Mystery", "Romance", "History",
+            "Biography", "Poetry", "Horror", "Travel", "Children", "Philosophy", "Economics"};
+
+    // enough that borrowing the same book from every thread never runs out
+    private static final int COPIES = 1_000_000;
+
+    private static final Bench.Step NOTHING = () -> {};
+
+    private final LibrarySystem system = LibrarySystem.getInstance();
+    private final Map<String, String> options;
+    private final Pattern filter;
+    private final int ops, warmup, iterations;
+    private final PrintStream report;
+    private final List<Bench.Result> results = new ArrayList<>();
+
+    private Book[] books = new Book[0];
+
+    private LibraryBenchmarks(Map<String, String> options, PrintStream report) {
+        this.options = options;
+        this.filter = Pattern.compile(options.getOrDefault("filter", ".*"));
+        this.ops = Integer.parseInt(options.getOrDefault("ops", "20000"));
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        this.iterations = Integer.parseInt(options.getOrDefault("iterations", "5"));
+        this.report = report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("Unknown argument " + arg);
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+
+        // the library reports every operation on System.out
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            LibraryBenchmarks benchmarks = new LibraryBenchmarks(options, report);
+            benchmarks.runAll();
+
+            report.println();
+            report.print(Bench.table(benchmarks.results));
+            Path out = Path.of(options.getOrDefault("out", "bench-results.json"));
+            Files.writeString(out, Bench.json(benchmarks.results, benchmarks.warmup, benchmarks.iterations));
+            report.println("Results written to " + out.toAbsolutePath());
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private void runAll() throws Exception {
+        int users = ints("users", "1000")[0];
+        for (int bookCount : ints("books", "10000,100000")) {
+            populate(bookCount, users);
+            for (int threads : ints("threads", "1,4")) {
+                lookups(threads, users);
+                catalogChanges(threads, users);
+                for (int history : ints("history", "0,100,1000")) {
+                    if (history < bookCount) borrowing(threads, users, history);
+                }
+                hotBook(threads, users);
+            }
+            if (options.containsKey("db")) database(users);
+        }
+    }
+
+    private int[] ints(String option, String defaults) {
+        String[] values = options.getOrDefault(option, defaults).split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) ints[i] = Integer.parseInt(values[i].trim());
+        return ints;
+    }
+
+    private void run(Bench.Case c) throws Exception {
+        if (!filter.matcher(c.name()).find()) return;
+        report.println("Running " + c.name() + " " + c.params());
+        results.add(Bench.run(c, warmup, iterations));
+        system.getChanges().clear();
+    }
+
+    // ---- data ----
+
+    private void populate(int bookCount, int userCount) throws Exception {
+        system.clear();
+        fill(bookCount, userCount);
+        system.getChanges().clear();
+    }
+
+    private void fill(int bookCount, int userCount) throws Exception {
+        books = new Book[bookCount];
+        for (int i = 0; i < bookCount; i++) books[i] = book("B" + i, i);
+        system.deferIndexes();
+        system.addBooks(List.of(books));
+        system.rebuildIndexes();
+        for (int i = 0; i < userCount; i++) system.addUser(new RegularUser("U" + i, "User " + i));
+    }
+
+    private static Book book(String id, int i) throws Exception {
+        return new Book(id, "Title " + i, "Author " + (i % 5000), GENRES[i % GENRES.length], COPIES);
+    }
+
+    // ---- benchmarks ----
+
+    private void lookups(int threads, int users) throws Exception {
+        int n = books.length;
+        String[] ids = new String[n], titles = new String[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = books[i].getId();
+            titles[i] = books[i].getTitle();
+        }
+        Map<String, Object> params = params("books", n, "users", users, "threads", threads);
+
+        run(new Bench.Case("findBookById", params, threads, ops, NOTHING,
+                (t, i) -> consume(system.findBookById(ids[index(t, i, n)])), NOTHING));
+        run(new Bench.Case("findBookByTitle", params, threads, ops, NOTHING,
+                (t, i) -> consume(system.findBookByTitle(titles[index(t, i, n)])), NOTHING));
+
+        if (users == 0) return;
+        String[] userIds = new String[users], names = new String[users];
+        for (int i = 0; i < users; i++) {
+            userIds[i] = "U" + i;
+            names[i] = "User " + i;
+        }
+        run(new Bench.Case("searchByID", params, threads, ops, NOTHING,
+                (t, i) -> consume(system.getUserSearch().searchByID(userIds[index(t, i, users)])), NOTHING));
+        run(new Bench.Case("searchByName", params, threads, ops, NOTHING,
+                (t, i) -> consume(system.getUserSearch().searchByName(names[index(t, i, users)])), NOTHING));
+    }
+
+    private void catalogChanges(int threads, int users) throws Exception {
+        Map<String, Object> params = params("books", books.length, "users", users, "threads", threads);
+        Book[][] fresh = new Book[threads][ops];
+
+        // the books to add are made up front; the ones added are removed again after
+        run(new Bench.Case("addBook", params, threads, ops,
+                () -> makeBooks(fresh),
+                (t, i) -> consume(system.addBook(fresh[t][i])),
+                () -> {
+                    for (Book[] perThread : fresh) {
+                        for (Book book : perThread) system.removeBook(book.getId());
+                    }
+                }));
+
+        run(new Bench.Case("removeBook", params, threads, ops,
+                () -> {
+                    makeBooks(fresh);
+                    for (Book[] perThread : fresh) system.addBooks(List.of(perThread));
+                },
+                (t, i) -> system.removeBook(fresh[t][i].getId()),
+                NOTHING));
+    }
+
+    private void makeBooks(Book[][] fresh) throws Exception {
+        for (int t = 0; t < fresh.length; t++) {
+            for (int i = 0; i < fresh[t].length; i++) fresh[t][i] = book("N" + t + "-" + i, books.length + i);
+        }
+    }
+
+    private void borrowing(int threads, int users, int history) throws Exception {
+        int n = books.length;
+        Map<String, Object> params = params("books", n, "users", users, "history", history, "threads", threads);
+
+        // each thread borrows and returns as its own user, whose history holds the first
+        // `history` books; the returned book leaves the history again, so its size stays put
+        User[] readers = new User[threads];
+        for (int t = 0; t < threads; t++) readers[t] = userWithHistory("R" + t + "-" + history, history, -1);
+
+        run(new Bench.Case("borrowReturn", params, threads, ops, NOTHING,
+                (t, i) -> {
+                    Book book = books[history + index(t, i, n - history)];
+                    readers[t].borrowBook(book.getId());
+                    readers[t].returnBook(book.getId());
+                    readers[t].removeFromHistory(book);
+                }, NOTHING));
+
+        // users with that much history and a borrowed book each, removed one by one
+        int removals = Math.max(1, ops / 50);
+        String[][] removed = new String[threads][removals];
+        run(new Bench.Case("removeUser", params, threads, removals,
+                () -> {
+                    for (int t = 0; t < threads; t++) {
+                        for (int i = 0; i < removals; i++) {
+                            removed[t][i] = userWithHistory("X" + t + "-" + i, history, history + i).getId();
+                        }
+                    }
+                },
+                (t, i) -> system.removeUser(removed[t][i]),
+                NOTHING));
+    }
+
+    private User userWithHistory(String id, int history, int borrowed) throws Exception {
+        User user = new RegularUser(id, "Reader " + id);
+        system.addUser(user);
+        for (int h = 0; h < history; h++) user.addHistoryBook(books[h]);
+        if (borrowed >= 0 && borrowed < books.length) user.borrowBook(books[borrowed].getId());
+        return user;
+    }
+
+    // Every thread borrows and returns the same book: contention on its copy count and holders
+    private void hotBook(int threads, int users) throws Exception {
+        Book hot = books[books.length - 1];
+        User[] readers = new User[threads];
+        for (int t = 0; t < threads; t++) {
+            readers[t] = new RegularUser("H" + t, "Reader H" + t);
+            system.addUser(readers[t]);
+        }
+
+        run(new Bench.Case("borrowReturnHotBook", params("books", books.length, "users", users, "threads", threads),
+                threads, ops, NOTHING,
+                (t, i) -> {
+                    readers[t].borrowBook(hot.getId());
+                    readers[t].returnBook(hot.getId());
+                    readers[t].removeFromHistory(hot);
+                }, NOTHING));
+
+        for (User reader : readers) system.removeUser(reader.getId());
+    }
+
+    private void database(int users) throws Exception {
+        if (!filter.matcher("saveData").find() && !filter.matcher("loadData").find()) return;
+        List<Path> files = databaseFiles();
+        if (files == null) return;
+
+        int n = books.length;
+        int dirty = Math.min(n, 1000);
+        Map<String, Object> params = params("books", n, "users", users, "dirty", dirty, "threads", 1);
+
+        DatabaseStorage storage = new DatabaseStorage(SqlDialect.SQLITE);
+        try {
+            // creates the schema, then the whole catalog is saved once
+            system.clear();
+            storage.loadData(system);
+            fill(n, users);
+            if (!storage.saveData(system)) throw new IllegalStateException("The initial save failed");
+
+            int[] round = {0};
+            run(new Bench.Case("saveData", params, 1, 1,
+                    () -> {
+                        round[0]++;
+                        for (int i = 0; i < dirty; i++) {
+                            books[index(round[0], i, n)].setAvailableCopies(COPIES - round[0] % 2);
+                        }
+                    },
+                    (t, i) -> consume(storage.saveData(system)),
+                    NOTHING));
+
+            DatabaseStorage[] loader = new DatabaseStorage[1];
+            run(new Bench.Case("loadData", params("books", n, "users", users, "threads", 1), 1, 1,
+                    () -> {
+                        system.clear();
+                        loader[0] = new DatabaseStorage(SqlDialect.SQLITE);
+                    },
+                    (t, i) -> loader[0].loadData(system),
+                    () -> loader[0].close()));
+        } finally {
+            storage.close();
+            for (Path file : files) Files.deleteIfExists(file);
+        }
+    }
+
+    // The files a database run may create, or null (with the reason) if it mustn't run
+    private List<Path> databaseFiles() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            report.println("Skipping saveData/loadData: the SQLite driver isn't on the class path.");
+            return null;
+        }
+
+        String database = System.getenv("SQLITE_PATH");
+        String snapshot = System.getenv("SNAPSHOT_PATH");
+        if (database == null || Files.exists(Path.of(database))
+                || !"off".equalsIgnoreCase(System.getenv("JOURNAL_PATH"))
+                || snapshot == null || (!snapshot.equalsIgnoreCase("off") && Files.exists(Path.of(snapshot)))) {
+            report.println("Skipping saveData/loadData: set SQLITE_PATH (and SNAPSHOT_PATH, or off) to files " +
+                    "that don't exist yet and JOURNAL_PATH=off.");
+            return null;
+        }
+
+        List<Path> files = new ArrayList<>(List.of(Path.of(database), Path.of(database + "-wal"),
+                Path.of(database + "-shm"), Path.of(database + "-journal")));
+        if (!snapshot.equalsIgnoreCase("off")) files.add(Path.of(snapshot));
+        return files;
+    }
+}
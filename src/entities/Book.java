@@ -3,31 +3,127 @@ package entities;
 import services.Searchable;
 
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class Book implements Searchable {
     private final String id;
-    private String title, author, genre;
-    private int availableCopies = 0;
+
+    // A book in the library is a view of its slot in the BookColumns it was added to. Until
+    // it is added, and again once it is removed, its fields live in fields instead (null
+    // meanwhile). Written under the book's lock in LibrarySystem, read without it.
+    private volatile BookColumns columns;
+    private volatile int slot = -1;
+    private volatile Fields fields;
+
+    // The copies of fields that moved into a slot, or of a slot whose book moved out; taking
+    // or returning a copy there changes nothing, and is tried again where they went
+    static final int MOVED = Integer.MIN_VALUE;
+
+    // Edited in place rather than replaced, so an edit can't undo a copy taken meanwhile
+    static final class Fields {
+        volatile String title, author, genre;
+        volatile int copies;
+
+        Fields(String title, String author, String genre, int copies) {
+            this.title = title;
+            this.author = author;
+            this.genre = genre;
+            this.copies = copies;
+        }
+
+        // The copies, leaving MOVED behind
+        int moveCopies() {
+            return COPIES.getAndSet(this, MOVED);
+        }
+
+        void addCopies(int n) {
+            COPIES.addAndGet(this, n);
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<Fields> COPIES =
+            AtomicIntegerFieldUpdater.newUpdater(Fields.class, "copies");
 
    public Book(String id,String title,String author,String genre,int availableCopies) throws Exception {
         this.id = id;
-        this.title = title;
-        this.author = author;
-        this.genre = genre;
 
         if(availableCopies < 0) throw new Exception("Invalid availableCopies");
-        else this.availableCopies = availableCopies;
+        else this.fields = new Fields(title, author, genre, availableCopies);
+
+    }
+
+    // ---- for BookColumns ----
+
+    Fields fields() {
+        Fields f = fields;
+        return f != null ? f : new Fields(getTitle(), getAuthor(), getGenre(), getAvailableCopies());
+    }
 
+    int slot() {
+        return fields == null ? slot : -1;
+    }
+
+    void attach(BookColumns columns, int slot) {
+        this.columns = columns;
+        this.slot = slot;
+        fields = null;
+    }
+
+    // columns and slot keep their old values, so a getter that read them just before is
+    // left with an emptied slot rather than none
+    void detach(Fields fields) {
+        this.fields = fields;
     }
 
    public void increaseCopies()
     {
-       this.availableCopies++;
+       int before;
+       do {
+           Fields f = fields;
+           before = f != null ? COPIES.getAndUpdate(f, c -> c == MOVED ? c : c + 1) : columns.addCopies(slot, 1);
+       } while (before == MOVED);
+       changed();
     }
 
    public void decreaseCopies() throws Exception {
-        if(availableCopies == 0) throw new Exception("No Copies to remove from.");
-        else this.availableCopies--;
+        if(!tryReserveCopy()) throw new Exception("No Copies to remove from.");
+    }
+
+    // Takes one copy if any is left. Lock-free, and a miss allocates nothing,
+    // so many borrowers of the same title don't queue behind each other.
+    public boolean tryReserveCopy() {
+        int before;
+        do {
+            Fields f = fields;
+            before = f != null ? reserveCopy(f) : columns.tryReserveCopy(slot);
+        } while (before == MOVED);
+        if (before <= 0) return false;
+        changed();
+        return true;
+    }
+
+    private static int reserveCopy(Fields f) {
+        int current;
+        do {
+            current = f.copies;
+            if (current <= 0) return current;
+        } while (!COPIES.compareAndSet(f, current, current - 1));
+        return current;
+    }
+
+    // Title, author and genre are sort keys of the library's catalog, so edits of a book in
+    // it go through the library to be filed again, under the book's lock
+    private void edit(Runnable write) {
+        BookColumns c = columns;
+        if (fields != null || c == null) write.run();
+        else c.refile(this, write);
+        changed();
+    }
+
+    // Only a book in the library has changes to save
+    private void changed() {
+        BookColumns c = columns;
+        if (fields == null && c != null) c.changed(this);
     }
 
     @Override
@@ -45,29 +141,46 @@ public class Book implements Searchable {
     }
 
     public String getTitle() {
+        Fields f = fields;
+        if (f != null) return f.title;
+        String title = columns.title(slot);
+        // a removed book's fields are cleared from its slot after they moved back into fields
+        if (title == null && (f = fields) != null) return f.title;
         return title;
     }
 
     public void setTitle(String title) {
-        this.title = title;
+        edit(() -> {
+            Fields f = fields;
+            if (f != null) f.title = title;
+            else columns.setTitle(slot, title);
+        });
     }
 
     public String getAuthor() {
+        Fields f = fields;
+        if (f != null) return f.author;
+        String author = columns.author(slot);
+        if (author == null && (f = fields) != null) return f.author;
         return author;
     }
 
     public void setAuthor(String author) {
-        this.author = author;
+        edit(() -> {
+            Fields f = fields;
+            if (f != null) f.author = author;
+            else columns.setAuthor(slot, author);
+        });
     }
 
     @Override
     public String toString() {
         return "Book{" +
                 "id='" + id + '\'' +
-                ", title='" + title + '\'' +
-                ", author='" + author + '\'' +
-                ", genre='" + genre + '\'' +
-                ", availableCopies=" + availableCopies +
+                ", title='" + getTitle() + '\'' +
+                ", author='" + getAuthor() + '\'' +
+                ", genre='" + getGenre() + '\'' +
+                ", availableCopies=" + getAvailableCopies() +
                 '}';
     }
 
@@ -84,19 +197,38 @@ public class Book implements Searchable {
     }
 
     public String getGenre() {
+        Fields f = fields;
+        if (f != null) return f.genre;
+        String genre = columns.genre(slot);
+        if (genre == null && (f = fields) != null) return f.genre;
         return genre;
     }
 
     public void setGenre(String genre) {
-        this.genre = genre;
+        edit(() -> {
+            Fields f = fields;
+            if (f != null) f.genre = genre;
+            else columns.setGenre(slot, genre);
+        });
     }
 
     public int getAvailableCopies() {
-        return availableCopies;
+        int copies;
+        do {
+            Fields f = fields;
+            copies = f != null ? f.copies : columns.copies(slot);
+        } while (copies == MOVED);
+        return copies;
     }
 
     public void setAvailableCopies(int availableCopies) throws Exception {
         if(availableCopies < 0) throw new Exception("Invalid availableCopies");
-        else this.availableCopies = availableCopies;
+        int before;
+        do {
+            Fields f = fields;
+            before = f != null ? COPIES.getAndUpdate(f, c -> c == MOVED ? c : availableCopies)
+                    : columns.setCopies(slot, availableCopies);
+        } while (before == MOVED);
+        changed();
     }
 }
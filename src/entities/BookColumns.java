@@ -0,0 +1,271 @@
+package entities;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The fields of the books in the library, stored column by column: slot i of every column
+// belongs to the i-th book added. Titles are kept as they are; authors and genres repeat
+// across a catalog, so each distinct one is stored once in a dictionary and the columns
+// hold its int code. A Book in the library is only a view of its slot (see Book).
+// Columns grow in chunks that never move, so slots are read without locking while books
+// are added. Slots are not reused: a removed book's title and Book are cleared and the
+// slot stays empty until the next start.
+// Books report edits and changed copies to the owner only while they are in the columns.
+public final class BookColumns {
+
+    // The library the columns belong to
+    public interface Owner {
+        // Runs an edit of a book's title, author or genre, filing it again under the new ones
+        void refile(Book book, Runnable edit);
+
+        void changed(Book book);
+    }
+
+    private static final int CHUNK_BITS = 12, CHUNK = 1 << CHUNK_BITS, MASK = CHUNK - 1;
+
+    private static final VarHandle BOOKS = MethodHandles.arrayElementVarHandle(Book[].class);
+    private static final VarHandle TITLES = MethodHandles.arrayElementVarHandle(String[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private static final class Chunk {
+        final Book[] books = new Book[CHUNK];
+        final String[] titles = new String[CHUNK];
+        final int[] authors = new int[CHUNK];
+        final int[] genres = new int[CHUNK];
+        final int[] copies = new int[CHUNK];
+    }
+
+    // Replaced, never changed in place, when it grows
+    private volatile Chunk[] chunks = new Chunk[0];
+    private volatile int slots = 0;
+
+    private final Dictionary authors = new Dictionary();
+    private final Dictionary genres = new Dictionary();
+    private final Owner owner;
+
+    public BookColumns(Owner owner) {
+        this.owner = owner;
+    }
+
+    // Moves a book's fields into the next slot and makes it a view of that slot
+    public synchronized int attach(Book book) {
+        int slot = slots;
+        Chunk[] current = chunks;
+        if (slot >> CHUNK_BITS == current.length) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = new Chunk();
+            chunks = current;
+        }
+
+        Chunk chunk = current[slot >> CHUNK_BITS];
+        int i = slot & MASK;
+        Book.Fields fields = book.fields();
+        TITLES.setRelease(chunk.titles, i, fields.title);
+        INTS.setRelease(chunk.authors, i, authors.encode(fields.author));
+        INTS.setRelease(chunk.genres, i, genres.encode(fields.genre));
+        BOOKS.setRelease(chunk.books, i, book);
+        book.attach(this, slot);
+        slots = slot + 1;
+        // the copies move last: a copy taken from or returned to the fields until here is
+        // counted, and one tried later finds them MOVED and goes to the slot instead
+        INTS.getAndAdd(chunk.copies, i, fields.moveCopies());
+        return slot;
+    }
+
+    // Moves a book's fields back into the book and empties its slot
+    public synchronized void detach(Book book) {
+        int slot = book.slot();
+        if (slot < 0) return;
+        Chunk chunk = chunk(slot);
+        int i = slot & MASK;
+        Book.Fields fields = new Book.Fields(title(slot), author(slot), genre(slot), 0);
+        book.detach(fields);
+        fields.addCopies((int) INTS.getAndSet(chunk.copies, i, Book.MOVED));
+
+        authors.release((int) INTS.getAndSet(chunk.authors, i, -1));
+        genres.release((int) INTS.getAndSet(chunk.genres, i, -1));
+        TITLES.setRelease(chunk.titles, i, (String) null);
+        BOOKS.setRelease(chunk.books, i, (Book) null);
+    }
+
+    // Slots handed out so far, including emptied ones
+    public int slotCount() {
+        return slots;
+    }
+
+    // The book in a slot, or null once it is removed
+    public Book book(int slot) {
+        return (Book) BOOKS.getAcquire(chunk(slot).books, slot & MASK);
+    }
+
+    public String title(int slot) {
+        return (String) TITLES.getAcquire(chunk(slot).titles, slot & MASK);
+    }
+
+    // null once the book is removed
+    public String author(int slot) {
+        return authors.value(chunk(slot).authors, slot & MASK);
+    }
+
+    public String genre(int slot) {
+        return genres.value(chunk(slot).genres, slot & MASK);
+    }
+
+    // Book.MOVED once the book is removed
+    int copies(int slot) {
+        return (int) INTS.getVolatile(chunk(slot).copies, slot & MASK);
+    }
+
+    // Genres of the books in the library
+    public List<String> genres() {
+        return genres.live();
+    }
+
+    public synchronized void clear() {
+        chunks = new Chunk[0];
+        slots = 0;
+        authors.clear();
+        genres.clear();
+    }
+
+    private Chunk chunk(int slot) {
+        return chunks[slot >> CHUNK_BITS];
+    }
+
+    // ---- for Book ----
+
+    void refile(Book book, Runnable edit) {
+        owner.refile(book, edit);
+    }
+
+    void changed(Book book) {
+        owner.changed(book);
+    }
+
+    void setTitle(int slot, String title) {
+        TITLES.setRelease(chunk(slot).titles, slot & MASK, title);
+    }
+
+    void setAuthor(int slot, String author) {
+        int[] column = chunk(slot).authors;
+        authors.release((int) INTS.getAndSet(column, slot & MASK, authors.encode(author)));
+    }
+
+    void setGenre(int slot, String genre) {
+        int[] column = chunk(slot).genres;
+        genres.release((int) INTS.getAndSet(column, slot & MASK, genres.encode(genre)));
+    }
+
+    // The copy updates return Book.MOVED, changing nothing, once the book has moved out
+
+    int setCopies(int slot, int copies) {
+        int[] column = chunk(slot).copies;
+        int i = slot & MASK, current;
+        do {
+            current = (int) INTS.getVolatile(column, i);
+            if (current == Book.MOVED) return current;
+        } while (!INTS.compareAndSet(column, i, current, copies));
+        return current;
+    }
+
+    int addCopies(int slot, int n) {
+        int[] column = chunk(slot).copies;
+        int i = slot & MASK, current;
+        do {
+            current = (int) INTS.getVolatile(column, i);
+            if (current == Book.MOVED) return current;
+        } while (!INTS.compareAndSet(column, i, current, current + n));
+        return current;
+    }
+
+    // The copies before taking one; none was taken if that is 0 or less
+    int tryReserveCopy(int slot) {
+        int[] column = chunk(slot).copies;
+        int i = slot & MASK, current;
+        do {
+            current = (int) INTS.getVolatile(column, i);
+            if (current <= 0) return current;
+        } while (!INTS.compareAndSet(column, i, current, current - 1));
+        return current;
+    }
+
+    // Distinct strings by code, with how many books in the library use each. A code no book
+    // uses any more is handed out again, so the dictionary holds no more strings than are
+    // in use at once; a reader that finds its slot's code changed while it looked the code
+    // up reads again.
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private volatile String[] values = new String[16];
+        private int[] counts = new int[16];
+        private int[] free = new int[16];
+        // when each code's string was added, to list them in that order
+        private long[] added = new long[16];
+        private long additions = 0;
+        private int size = 0, freeCount = 0;
+
+        // -1 stands for null
+        synchronized int encode(String value) {
+            if (value == null) return -1;
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = freeCount > 0 ? free[--freeCount] : size++;
+                String[] current = values;
+                if (code == current.length) {
+                    current = Arrays.copyOf(current, code * 2);
+                    counts = Arrays.copyOf(counts, code * 2);
+                    added = Arrays.copyOf(added, code * 2);
+                }
+                added[code] = additions++;
+                current[code] = value;
+                values = current;
+                codes.put(value, code);
+            }
+            counts[code]++;
+            return code;
+        }
+
+        synchronized void release(int code) {
+            if (code < 0 || --counts[code] > 0) return;
+            codes.remove(values[code]);
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = code;
+        }
+
+        String value(int[] column, int i) {
+            while (true) {
+                int code = (int) INTS.getAcquire(column, i);
+                String value = code < 0 ? null : values[code];
+                if ((int) INTS.getAcquire(column, i) == code) return value;
+            }
+        }
+
+        // In the order they were added
+        synchronized List<String> live() {
+            List<Integer> live = new ArrayList<>();
+            for (int code = 0; code < size; code++) {
+                if (counts[code] > 0) live.add(code);
+            }
+            live.sort(Comparator.comparingLong(code -> added[code]));
+            List<String> strings = new ArrayList<>(live.size());
+            for (int code : live) strings.add(values[code]);
+            return strings;
+        }
+
+        synchronized void clear() {
+            codes.clear();
+            values = new String[16];
+            counts = new int[16];
+            free = new int[16];
+            added = new long[16];
+            additions = 0;
+            size = 0;
+            freeCount = 0;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package entities;
+
+// Outcome of a borrow or return. Refusals are expected, everyday results, so they are
+// returned as codes instead of thrown.
+public enum BorrowResult {
+    OK(null),
+    NO_SUCH_BOOK("Book doesn't exist."),
+    ALREADY_BORROWED("You already borrowed the book."),
+    BORROWED_BEFORE("You can't borrow book twice."),
+    NO_COPIES("There are no available copies."),
+    NOT_BORROWED("You didn't borrowed the book.");
+
+    private final String message;
+
+    BorrowResult(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
@@ -1,26 +1,33 @@
 package entities;
 
-import services.SearchService;
+import metrics.LibraryMetrics;
 import services.Searchable;
 import storage.LibrarySystem;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class User implements Searchable , Borrowable {
 
-    private String id, name;
-    private final List<Book> borrowedBooks;
-    private final List<Book> historyBooks;
+    private String id;
+    private volatile String name;
+    // By book id, in the order they were added; guarded by the user's lock in LibrarySystem
+    private final Map<String, Book> borrowedBooks;
+    private final Map<String, Book> historyBooks;
     private final LibrarySystem lib;
 
+    // false while the history is still only in storage (see deferHistoryLoading)
+    private volatile boolean historyLoaded = true;
+
     public User(String id, String name)
     {
         this.id = id;
         this.name = name;
-        borrowedBooks = new ArrayList<>();
-        historyBooks = new ArrayList<>();
+        borrowedBooks = new LinkedHashMap<>();
+        historyBooks = new LinkedHashMap<>();
         lib = LibrarySystem.getInstance();
     }
 
@@ -29,8 +36,8 @@ public abstract class User implements Searchable , Borrowable {
         return "User{" +
                 "id='" + id + '\'' +
                 ", name='" + name + '\'' +
-                ", borrowedBooks=" + borrowedBooks +
-                ", historyBooks=" + historyBooks +
+                ", borrowedBooks=" + borrowedBooks.values() +
+                ", historyBooks=" + historyBooks.values() +
                 '}';
     }
 
@@ -50,88 +57,277 @@ public abstract class User implements Searchable , Borrowable {
     }
     public void setName(String name) {
         this.name = name;
+        lib.userRenamed(this);
+        lib.getChanges().userChanged(this);
     }
 
+    // Copies, safe to iterate while the user borrows and returns
     public List<Book> getHistoryBooks() {
-        return historyBooks;
+        loadHistory();
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            return new ArrayList<>(historyBooks.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // History already in memory, without reading what is still in storage
+    public List<Book> getLoadedHistoryBooks() {
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            return new ArrayList<>(historyBooks.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Storage calls this for users whose history it didn't load; it is read on first use
+    public void deferHistoryLoading() {
+        historyLoaded = false;
+    }
+
+    public boolean isHistoryLoaded() {
+        return historyLoaded;
+    }
+
+    // Reads stored history if it isn't loaded yet. The query runs without the user's lock;
+    // the result is only installed if no other thread got there first.
+    private void loadHistory() {
+        if (historyLoaded) return;
+        List<Book> stored = lib.loadHistory(id);
+
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            if (historyLoaded) return;
+            for (Book book : stored) {
+                // books returned since startup are already in the map
+                if (historyBooks.putIfAbsent(book.getId(), book) != null) continue;
+                lib.indexHistory(this, book);
+                // as in borrow: index, then re-check, so a book removed since the query is
+                // either unindexed by removeBook or dropped here
+                if (lib.findBookById(book.getId()) != book) {
+                    historyBooks.remove(book.getId());
+                    lib.unindexHistory(this, book);
+                }
+            }
+            historyLoaded = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasBorrowed(String bookId) {
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            return borrowedBooks.containsKey(bookId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reads stored history first if it isn't loaded yet
+    public boolean hasInHistory(String bookId) {
+        loadHistory();
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            return historyBooks.containsKey(bookId);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void addBorrowedBook(Book book)
     {
-        this.borrowedBooks.add(book);
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            this.borrowedBooks.put(book.getId(), book);
+            lib.indexBorrowed(this, book);
+            lib.getChanges().borrowedAdded(id, book.getId());
+        } finally {
+            lock.unlock();
+        }
     }
     public void removeBorrowedBook(Book book)
     {
-        this.borrowedBooks.remove(book);
-        this.historyBooks.add(book);
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            // history first: removeBook reads holders and then past borrowers, so a user moving
+            // from one to the other is always in at least one of them
+            addHistoryBook(book);
+            removeFromBorrowed(book);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void removeBook(Book book)
     {
-        this.borrowedBooks.remove(book);
-        this.historyBooks.remove(book);
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            removeFromBorrowed(book);
+            removeFromHistory(book);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Single-edge changes (also what the journal replays)
+    public void addHistoryBook(Book book)
+    {
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            this.historyBooks.put(book.getId(), book);
+            lib.indexHistory(this, book);
+            lib.getChanges().historyAdded(id, book.getId());
+        } finally {
+            lock.unlock();
+        }
     }
+    public void removeFromBorrowed(Book book)
+    {
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            if (this.borrowedBooks.remove(book.getId()) != null) {
+                lib.unindexBorrowed(this, book);
+                lib.getChanges().borrowedRemoved(id, book.getId());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    public void removeFromHistory(Book book)
+    {
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            // stored history that isn't loaded yet only loses rows through deleted books (ON DELETE CASCADE)
+            if (this.historyBooks.remove(book.getId()) != null) {
+                lib.unindexHistory(this, book);
+                lib.getChanges().historyRemoved(id, book.getId());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    // Copy, safe to iterate while the user borrows and returns
     public List<Book> getBorrowedBooks() {
-        return borrowedBooks;
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            return new ArrayList<>(borrowedBooks.values());
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void borrowBook(String bookId) throws Exception {
+        BorrowResult result = tryBorrow(bookId);
+        if (result != BorrowResult.OK) throw new Exception(result.getMessage());
+    }
+
+    @Override
+    public void returnBook(String bookId) throws Exception {
+        BorrowResult result = tryReturn(bookId);
+        if (result != BorrowResult.OK) throw new Exception(result.getMessage());
+    }
+
+    public BorrowResult tryBorrow(String bookId) {
+        long start = System.nanoTime();
+        BorrowResult result = borrow(bookId);
+        LibraryMetrics.getInstance().borrowed(result, System.nanoTime() - start);
+        return result;
+    }
+
+    public BorrowResult tryReturn(String bookId) {
+        long start = System.nanoTime();
+        BorrowResult result = giveBack(bookId);
+        LibraryMetrics.getInstance().returned(result, System.nanoTime() - start);
+        return result;
+    }
+
+    // Only the user's own lock is held; the copy is reserved with a CAS on the book.
+    private BorrowResult borrow(String bookId) {
         // must not be borrowed before
         // must have copies, so i dec
 
-        Book bookL = lib.findBookById(bookId);
+        loadHistory();
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            Book bookL = lib.findBookById(bookId);
 
-        if(bookL == null)
-        {
-            throw new Exception("Book doesn't exist.");
-        }
+            if(bookL == null)
+            {
+                return BorrowResult.NO_SUCH_BOOK;
+            }
 
-        SearchService<Book> borrowService = new SearchService<>(this.borrowedBooks);
-        Book bookB = borrowService.searchByID(bookId);
+            if(borrowedBooks.containsKey(bookId))
+            {
+                return BorrowResult.ALREADY_BORROWED;
+            }
+            else if(historyBooks.containsKey(bookId))
+            {
+                return BorrowResult.BORROWED_BEFORE;
+            }
+            else if (!bookL.tryReserveCopy())
+            {
+                return BorrowResult.NO_COPIES;
+            }
 
-        SearchService<Book> historyService = new SearchService<>(this.historyBooks);
-        Book bookH = historyService.searchByID(bookId);
+            addBorrowedBook(bookL);
 
-        if(bookB != null)
-        {
-            throw new Exception("You already borrowed the book.");
-        }
-        else if(bookH != null)
-        {
-            throw new Exception("You can't borrow book twice.");
+            // removeBook unmaps the book and then reads the holder index; this indexes the
+            // user and then re-checks the map, so at least one side sees the other
+            if (lib.findBookById(bookId) != bookL)
+            {
+                removeFromBorrowed(bookL);
+                return BorrowResult.NO_SUCH_BOOK;
+            }
+        } finally {
+            lock.unlock();
         }
-        else if (bookL.getAvailableCopies() <= 0)
-        {
-            throw new Exception("There are no available copies.");
-        }
-
-        addBorrowedBook(bookL);
-        bookL.decreaseCopies();
+        lib.getChanges().commit();
+        return BorrowResult.OK;
     }
 
-    @Override
-    public void returnBook(String bookId) throws Exception {
+    private BorrowResult giveBack(String bookId) {
         // must be in borrowed list
         // must have copies, so i inc
 
-        Book bookL = lib.findBookById(bookId);
+        ReentrantLock lock = lib.userLock(id);
+        lock.lock();
+        try {
+            Book bookL = lib.findBookById(bookId);
 
-        if(bookL == null)
-        {
-            throw new Exception("Book doesn't exist.");
-        }
+            if(bookL == null)
+            {
+                return BorrowResult.NO_SUCH_BOOK;
+            }
 
-        SearchService<Book> borrowService = new SearchService<>(this.borrowedBooks);
-        Book bookB = borrowService.searchByID(bookId);
+            if(!borrowedBooks.containsKey(bookId))
+            {
+                return BorrowResult.NOT_BORROWED;
+            }
 
-        if(bookB == null)
-        {
-            throw new Exception("You didn't borrowed the book.");
+            removeBorrowedBook(bookL);
+            bookL.increaseCopies();
+        } finally {
+            lock.unlock();
         }
-
-        removeBorrowedBook(bookL);
-        bookL.increaseCopies();
+        lib.getChanges().commit();
+        return BorrowResult.OK;
     }
 
 }
@@ -1,15 +1,30 @@
 package main;
 
 import entities.Admin;
-import storage.DatabaseStorage;
+import metrics.LibraryMetrics;
+import storage.CatalogExport;
+import storage.CatalogImport;
 import storage.LibrarySystem;
+import storage.StorageEngine;
 import ui.ConsoleUI;
+import ui.LibraryServer;
+
+import java.nio.file.Path;
+import java.util.List;
 
 public class Main {
     public static void main(String[] args) throws Exception {
         LibrarySystem system = LibrarySystem.getInstance();
 
-        DatabaseStorage storage = new DatabaseStorage();
+        // Counters and latency histograms as MBeans under "library:", and every
+        // METRICS_LOG_SECONDS as a log line
+        LibraryMetrics.getInstance().registerMBeans();
+        String logSeconds = System.getenv("METRICS_LOG_SECONDS");
+        if (logSeconds != null && !logSeconds.isBlank()) {
+            LibraryMetrics.getInstance().startReporter(Long.parseLong(logSeconds.trim()));
+        }
+
+        StorageEngine storage = StorageEngine.fromEnv();
         storage.loadData(system);
 
         if (system.usersSize() == 0) {
@@ -18,9 +33,56 @@ public class Main {
             System.out.println(" Default admin created (ID: admin123, Name: Nouran)");
         }
 
+        // import <file>: bulk-load books from CSV/JSONL, save once and exit
+        if (args.length == 2 && args[0].equals("import")) {
+            CatalogImport.Report report = new CatalogImport(system, Runtime.getRuntime().availableProcessors())
+                    .importFile(Path.of(args[1]));
+            System.out.println(report);
+            if (!storage.saveData(system)) System.out.println("Saving the imported books failed.");
+            storage.close();
+            return;
+        }
+
+        // export <dir> [jsonl] [gzip]: write books, users and loans to files and exit
+        if (args.length >= 2 && args[0].equals("export")) {
+            List<String> options = List.of(args).subList(2, args.length);
+            CatalogImport.Format format = options.contains("jsonl") ? CatalogImport.Format.JSONL : CatalogImport.Format.CSV;
+            System.out.println(new CatalogExport(system, format, options.contains("gzip")).exportTo(Path.of(args[1]), 3));
+            storage.close();
+            return;
+        }
+
+        // SERVER_PORT set: serve the menus over TCP until the JVM is stopped
+        String port = System.getenv("SERVER_PORT");
+        if (port != null && !port.isBlank()) {
+            serve(storage, system, Integer.parseInt(port.trim()));
+            return;
+        }
+
         ConsoleUI ui = new ConsoleUI();
         ui.handleWelcomeMenu();
 
         storage.saveData(system);
+        storage.close();
+    }
+
+    private static void serve(StorageEngine storage, LibrarySystem system, int port) throws Exception {
+        // Loopback unless SERVER_HOST says otherwise: logging in only takes a user ID
+        String host = System.getenv().getOrDefault("SERVER_HOST", "127.0.0.1");
+        // Sessions may only export below EXPORT_DIR, and not at all without it
+        String exportDir = System.getenv("EXPORT_DIR");
+        Path exportRoot = exportDir == null || exportDir.isBlank() ? null : Path.of(exportDir.trim());
+        LibraryServer server = new LibraryServer(host, port, exportRoot);
+
+        // Ctrl+C / docker stop: disconnect the sessions, then save
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            storage.saveData(system);
+            storage.close();
+        }, "server-shutdown"));
+
+        server.start();
+        System.out.println("Library server listening on " + host + ":" + server.getPort() + ".");
+        server.join();
     }
 }
@@ -0,0 +1,124 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies in nanoseconds, counted in log-linear buckets as in HdrHistogram: every power of
+// two is split into 32 sub-buckets, so a percentile is within about 3% of the true value
+// from 1 ns up to about 36 minutes (2^41 ns; longer ones land in the last bucket). Recording
+// is a few atomic increments and allocates nothing; percentiles are read off a copy.
+public class LatencyHistogram implements LatencyMXBean {
+
+    public record Snapshot(long count, double meanNanos, long p50, long p90, long p99, long p999, long maxNanos) {
+
+        @Override
+        public String toString() {
+            return "n=" + count + " p50=" + micros(p50) + " p99=" + micros(p99) + " max=" + micros(maxNanos);
+        }
+
+        private static String micros(long nanos) {
+            return nanos >= 10_000_000 ? nanos / 1_000_000 + "ms" : nanos / 1_000 + "us";
+        }
+    }
+
+    private static final int SUB_BITS = 5, SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retry
+        }
+    }
+
+    // For a start taken with System.nanoTime()
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // Below 2 * SUB_BUCKETS a bucket is one nanosecond wide; above, the top SUB_BITS + 1 bits
+    // of the value pick the bucket within its power of two
+    private static int bucket(long nanos) {
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent < SUB_BITS) return (int) nanos;
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (nanos >>> shift);
+    }
+
+    // The largest value that falls into a bucket
+    private static long upperBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += copy[i] = buckets.get(i);
+        long maxNanos = max.get();
+        double mean = n == 0 ? 0 : (double) total.sum() / count.sum();
+        return new Snapshot(n, mean, percentile(copy, n, 0.50, maxNanos), percentile(copy, n, 0.90, maxNanos),
+                percentile(copy, n, 0.99, maxNanos), percentile(copy, n, 0.999, maxNanos), maxNanos);
+    }
+
+    private static long percentile(long[] buckets, long count, double fraction, long maxNanos) {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(fraction * count), seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) return Math.min(upperBound(i), maxNanos);
+        }
+        return maxNanos;
+    }
+
+    // ---- LatencyMXBean ----
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return snapshot().meanNanos() / 1_000;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return snapshot().p50() / 1_000.0;
+    }
+
+    @Override
+    public double getP90Micros() {
+        return snapshot().p90() / 1_000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return snapshot().p99() / 1_000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return snapshot().p999() / 1_000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return max.get() / 1_000.0;
+    }
+}
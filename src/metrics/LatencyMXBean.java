@@ -0,0 +1,19 @@
+package metrics;
+
+// One latency histogram, registered as library:type=Latency,name=<operation>
+public interface LatencyMXBean {
+
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP90Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,257 @@
+package metrics;
+
+import entities.BorrowResult;
+import storage.LibrarySystem;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// What the library has been doing: operation counters, latency histograms (borrowBook,
+// returnBook, and loadData/saveData with one histogram per phase) and gauges read from
+// LibrarySystem. Recording only increments counters, so it allocates nothing and can sit on
+// every borrow. Components with statistics of their own (the connection pool, write-behind)
+// add them as sources. Published as platform MBeans under "library:" and, optionally, as a
+// log line every few seconds.
+public final class LibraryMetrics implements LibraryMetricsMXBean {
+
+    private static final BorrowResult[] RESULTS = BorrowResult.values();
+
+    private static final LibraryMetrics INSTANCE = new LibraryMetrics();
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder returns = new LongAdder();
+    private final LongAdder[] failedBorrows = new LongAdder[RESULTS.length];
+    private final LongAdder booksAdded = new LongAdder();
+    private final LongAdder booksRemoved = new LongAdder();
+    private final LongAdder usersAdded = new LongAdder();
+    private final LongAdder usersRemoved = new LongAdder();
+
+    private final LatencyHistogram borrowLatency = new LatencyHistogram();
+    private final LatencyHistogram returnLatency = new LatencyHistogram();
+
+    // Sorted so the log line lists them in a stable order; created on first use
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<?>> sources = new ConcurrentSkipListMap<>();
+
+    private MBeanServer server;
+    private ScheduledExecutorService reporter;
+
+    private LibraryMetrics() {
+        for (int i = 0; i < failedBorrows.length; i++) failedBorrows[i] = new LongAdder();
+        latencies.put("borrowBook", borrowLatency);
+        latencies.put("returnBook", returnLatency);
+    }
+
+    public static LibraryMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    // ---- recording ----
+
+    public void borrowed(BorrowResult result, long nanos) {
+        if (result == BorrowResult.OK) borrows.increment();
+        else failedBorrows[result.ordinal()].increment();
+        borrowLatency.record(nanos);
+    }
+
+    public void returned(BorrowResult result, long nanos) {
+        if (result == BorrowResult.OK) returns.increment();
+        returnLatency.record(nanos);
+    }
+
+    public void bookAdded() {
+        booksAdded.increment();
+    }
+
+    public void bookRemoved() {
+        booksRemoved.increment();
+    }
+
+    public void userAdded() {
+        usersAdded.increment();
+    }
+
+    public void userRemoved() {
+        usersRemoved.increment();
+    }
+
+    // The histogram of a named operation or phase, e.g. "saveData.persist"
+    public LatencyHistogram latency(String name) {
+        LatencyHistogram histogram = latencies.get(name);
+        return histogram != null ? histogram : create(name);
+    }
+
+    private synchronized LatencyHistogram create(String name) {
+        LatencyHistogram histogram = latencies.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            latencies.put(name, histogram);
+            if (server != null) register(server, name, histogram);
+        }
+        return histogram;
+    }
+
+    // Counts start over, e.g. once a load has re-added everything that was saved
+    public void resetCounters() {
+        for (LongAdder counter : failedBorrows) counter.reset();
+        borrows.reset();
+        returns.reset();
+        booksAdded.reset();
+        booksRemoved.reset();
+        usersAdded.reset();
+        usersRemoved.reset();
+    }
+
+    // A component's statistics, read (and shown with toString) whenever metrics are
+    // published; replaces a source of the same name
+    public void addSource(String name, Supplier<?> stats) {
+        sources.put(name, stats);
+    }
+
+    public void removeSource(String name) {
+        sources.remove(name);
+    }
+
+    // ---- publishing ----
+
+    public synchronized void registerMBeans() {
+        if (server != null) return;
+        MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        try {
+            platform.registerMBean(this, new ObjectName("library:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Couldn't register the metrics MBean: " + e.getMessage());
+            return;
+        }
+        server = platform;
+        latencies.forEach((name, histogram) -> register(platform, name, histogram));
+    }
+
+    private static void register(MBeanServer server, String name, LatencyHistogram histogram) {
+        try {
+            server.registerMBean(histogram, new ObjectName("library:type=Latency,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            System.out.println("Couldn't register the " + name + " latency MBean: " + e.getMessage());
+        }
+    }
+
+    // Prints summary() every period on a background thread
+    public synchronized void startReporter(long periodSeconds) {
+        if (reporter != null || periodSeconds <= 0) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(summary()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopReporter() {
+        if (reporter == null) return;
+        reporter.shutdownNow();
+        reporter = null;
+    }
+
+    public String summary() {
+        StringBuilder out = new StringBuilder("Metrics: books=").append(getBooks())
+                .append(" users=").append(getUsers())
+                .append(" genres=").append(getGenres())
+                .append(" loans=").append(getOutstandingLoans())
+                .append(" borrows=").append(getBorrows())
+                .append(" failedBorrows=").append(getFailedBorrows())
+                .append(" returns=").append(getReturns());
+        latencies.forEach((name, histogram) -> {
+            if (histogram.getCount() > 0) out.append(" | ").append(name).append(' ').append(histogram.snapshot());
+        });
+        getSources().forEach((name, stats) -> out.append(" | ").append(name).append(' ').append(stats));
+        return out.toString();
+    }
+
+    // ---- LibraryMetricsMXBean ----
+
+    @Override
+    public long getBorrows() {
+        return borrows.sum();
+    }
+
+    @Override
+    public long getReturns() {
+        return returns.sum();
+    }
+
+    @Override
+    public long getFailedBorrows() {
+        long failed = 0;
+        for (LongAdder counter : failedBorrows) failed += counter.sum();
+        return failed;
+    }
+
+    @Override
+    public Map<String, Long> getFailedBorrowsByReason() {
+        Map<String, Long> byReason = new LinkedHashMap<>();
+        for (BorrowResult result : RESULTS) {
+            if (result != BorrowResult.OK) byReason.put(result.name(), failedBorrows[result.ordinal()].sum());
+        }
+        return byReason;
+    }
+
+    @Override
+    public long getBooksAdded() {
+        return booksAdded.sum();
+    }
+
+    @Override
+    public long getBooksRemoved() {
+        return booksRemoved.sum();
+    }
+
+    @Override
+    public long getUsersAdded() {
+        return usersAdded.sum();
+    }
+
+    @Override
+    public long getUsersRemoved() {
+        return usersRemoved.sum();
+    }
+
+    @Override
+    public int getBooks() {
+        return LibrarySystem.getInstance().booksSize();
+    }
+
+    @Override
+    public int getUsers() {
+        return LibrarySystem.getInstance().usersSize();
+    }
+
+    @Override
+    public int getGenres() {
+        return LibrarySystem.getInstance().getGenres().size();
+    }
+
+    @Override
+    public long getOutstandingLoans() {
+        return LibrarySystem.getInstance().loanCount();
+    }
+
+    @Override
+    public Map<String, String> getSources() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        sources.forEach((name, source) -> {
+            Object value = source.get();
+            if (value != null) stats.put(name, value.toString());
+        });
+        return stats;
+    }
+}
@@ -0,0 +1,35 @@
+package metrics;
+
+import java.util.Map;
+
+// Operation counters and catalog gauges, registered as library:type=Metrics
+public interface LibraryMetricsMXBean {
+
+    long getBorrows();
+
+    long getReturns();
+
+    long getFailedBorrows();
+
+    // Failed borrows by BorrowResult
+    Map<String, Long> getFailedBorrowsByReason();
+
+    long getBooksAdded();
+
+    long getBooksRemoved();
+
+    long getUsersAdded();
+
+    long getUsersRemoved();
+
+    int getBooks();
+
+    int getUsers();
+
+    int getGenres();
+
+    long getOutstandingLoans();
+
+    // Statistics of the connection pool and write-behind, by source name
+    Map<String, String> getSources();
+}
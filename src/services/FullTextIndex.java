@@ -0,0 +1,525 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+// Ranked full-text search over a few weighted text fields of each item.
+//
+// Every indexed item gets a document number, and every term a term number; a term's posting
+// list holds the documents it occurs in as varint-encoded [doc number gap][weighted term
+// frequency] pairs, appended in increasing document order. Terms and item ids find their
+// numbers through open-addressing tables of ints, and posting lists are kept as columns by
+// term number, so a rare term costs a few dozen bytes rather than a map entry and an
+// object. Removing an item only marks its document deleted; editing one removes it and
+// indexes it again under a new number. Deleted documents are dropped by a rebuild once
+// they outnumber live ones. Results are ranked with BM25.
+public class FullTextIndex<T extends Searchable> {
+
+    public record Field<T>(Function<T, String> value, int weight) {}
+
+    public record Hit<T>(T item, double score) {}
+
+    private static final double K1 = 1.2, B = 0.75;
+    private static final int REBUILD_SLICE = 1 << 16;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "by", "for", "from", "in", "is", "it",
+            "of", "on", "or", "the", "to", "with");
+
+    private final List<Field<T>> fields;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Terms by number, and per term its posting list: the varint pairs, their length in bytes,
+    // the last document in it and how many documents it has
+    private String[] terms;
+    private byte[][] postingData;
+    private int[] postingSize, lastDoc, docCount;
+    private int termCount;
+    // term number + 1 per term, 0 for free; linear probing, at most half full
+    private int[] termTable;
+
+    private final List<T> docs = new ArrayList<>();
+    private int[] docLength = new int[1024];
+    // doc number + 1 per live item id, 0 for free and -1 for removed; at most half full
+    // counting removed entries
+    private int[] docTable;
+    private int docTableUsed, liveDocs;
+    private final BitSet deleted = new BitSet();
+    private long totalLength = 0;
+
+    public FullTextIndex(List<Field<T>> fields) {
+        this.fields = List.copyOf(fields);
+        clear();
+    }
+
+    // Lower-cased, accent-free words of letters and digits, without stop words
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        String normalized = SearchService.normalize(text);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean word = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String token = normalized.substring(start, i);
+                if (!STOP_WORDS.contains(token)) tokens.add(token);
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // Weighted frequency of each term in an item; insertion order keeps builds deterministic
+    private Map<String, Integer> termFrequencies(T item) {
+        Map<String, Integer> tf = new LinkedHashMap<>();
+        for (Field<T> field : fields) {
+            String value = field.value().apply(item);
+            if (value == null) continue;
+            for (String token : tokenize(value)) tf.merge(token, field.weight(), Integer::sum);
+        }
+        return tf;
+    }
+
+    // Replaces the whole index; items are tokenized in parallel, then appended in order.
+    // Slices bound how many per-item term maps exist at once.
+    public void rebuild(Collection<T> items) {
+        List<T> list = new ArrayList<>(items);
+        lock.writeLock().lock();
+        try {
+            clear();
+            for (int from = 0; from < list.size(); from += REBUILD_SLICE) {
+                List<T> slice = list.subList(from, Math.min(list.size(), from + REBUILD_SLICE));
+                List<Map<String, Integer>> frequencies = slice.parallelStream().map(this::termFrequencies).toList();
+                for (int i = 0; i < slice.size(); i++) append(slice.get(i), frequencies.get(i));
+            }
+            // lists grow by doubling; they won't grow much more after a full build
+            for (int t = 0; t < termCount; t++) {
+                if (postingData[t].length > postingSize[t]) postingData[t] = Arrays.copyOf(postingData[t], postingSize[t]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(T item) {
+        Map<String, Integer> tf = termFrequencies(item);
+        lock.writeLock().lock();
+        try {
+            int old = docOf(item.getID());
+            if (old >= 0) delete(old);
+            append(item, tf);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(T item) {
+        lock.writeLock().lock();
+        try {
+            int doc = docOf(item.getID());
+            if (doc >= 0) delete(doc);
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Re-indexes an item whose text changed
+    public void update(T item) {
+        add(item);
+        lock.writeLock().lock();
+        try {
+            compactIfSparse();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The k best matches for the query, best first. Posting lists are in document order,
+    // so the query's lists are merged and each matching document is scored once, as the
+    // merge reaches it, straight into a bounded heap: nothing is kept per document, and
+    // the cursors and heap are this thread's reused Scratch.
+    public List<Hit<T>> search(String query, int k) {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        if (terms.isEmpty() || k <= 0) return List.of();
+
+        Scratch scratch = SCRATCH.get();
+        lock.readLock().lock();
+        try {
+            int live = liveDocs;
+            if (live == 0) return List.of();
+            double avgLength = (double) totalLength / live;
+
+            int n = 0;
+            scratch.termCount = 0;
+            for (String term : terms) {
+                int t = termNumber(term);
+                if (t < 0) continue;
+                // idf needs the number of live postings
+                int df = 0;
+                for (long p = next(t, 0, 0); p >= 0; p = next(t, afterTf(t, p), doc(p))) df++;
+                if (df == 0) continue;
+                scratch.addTerm(t, Math.log(1 + (live - df + 0.5) / (df + 0.5)), next(t, 0, 0));
+                n++;
+            }
+
+            scratch.startTop(k);
+            while (true) {
+                int doc = Integer.MAX_VALUE;
+                for (int i = 0; i < n; i++) {
+                    if (scratch.postings[i] >= 0) doc = Math.min(doc, doc(scratch.postings[i]));
+                }
+                if (doc == Integer.MAX_VALUE) break;
+
+                double norm = K1 * (1 - B + B * docLength[doc] / avgLength), score = 0;
+                for (int i = 0; i < n; i++) {
+                    long p = scratch.postings[i];
+                    if (p < 0 || doc(p) != doc) continue;
+                    int tf = tf(scratch.terms[i], p);
+                    score += scratch.idf[i] * tf * (K1 + 1) / (tf + norm);
+                    scratch.postings[i] = next(scratch.terms[i], afterTf(scratch.terms[i], p), doc);
+                }
+                scratch.offer(doc, score);
+            }
+
+            int found = scratch.finishTop();
+            List<Hit<T>> hits = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) hits.add(new Hit<>(docs.get(scratch.heapDocs[i]), scratch.heapScores[i]));
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // A position in a posting list, packed into a long: the byte offset of the posting's tf
+    // and the posting's doc. The next live posting from a byte offset, given the doc before
+    // it, or -1 at the end of the list.
+    private long next(int t, int offset, int doc) {
+        byte[] data = postingData[t];
+        int size = postingSize[t];
+        while (offset < size) {
+            doc += readVarint(data, offset);
+            offset = skipVarint(data, offset);
+            if (!deleted.get(doc)) return (long) offset << 32 | doc;
+            offset = skipVarint(data, offset);
+        }
+        return -1;
+    }
+
+    private static int doc(long posting) {
+        return (int) posting;
+    }
+
+    private static int position(long posting) {
+        return (int) (posting >>> 32);
+    }
+
+    // The offset just past a posting's tf
+    private int afterTf(int t, long posting) {
+        return skipVarint(postingData[t], position(posting));
+    }
+
+
+    private int tf(int t, long posting) {
+        return readVarint(postingData[t], position(posting));
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    // Per-query state kept between queries: each query term's number, idf and current
+    // posting, and a min-heap of the best k documents so far, of equal scores the earlier
+    // document ranking higher
+    private static final class Scratch {
+        int[] terms = new int[8];
+        double[] idf = new double[8];
+        long[] postings = new long[8];
+        int termCount;
+        int[] heapDocs = new int[16];
+        double[] heapScores = new double[16];
+        int heapSize, k;
+
+        void addTerm(int t, double termIdf, long first) {
+            if (termCount == terms.length) {
+                terms = Arrays.copyOf(terms, termCount * 2);
+                idf = Arrays.copyOf(idf, termCount * 2);
+                postings = Arrays.copyOf(postings, termCount * 2);
+            }
+            terms[termCount] = t;
+            idf[termCount] = termIdf;
+            postings[termCount++] = first;
+        }
+
+        void startTop(int k) {
+            this.k = k;
+            heapSize = 0;
+        }
+
+        void offer(int doc, double score) {
+            if (heapSize < k) {
+                if (heapSize == heapDocs.length) {
+                    heapDocs = Arrays.copyOf(heapDocs, heapSize * 2);
+                    heapScores = Arrays.copyOf(heapScores, heapSize * 2);
+                }
+                heapDocs[heapSize] = doc;
+                heapScores[heapSize] = score;
+                siftUp(heapSize++);
+            } else if (weaker(heapScores[0], heapDocs[0], score, doc)) {
+                heapDocs[0] = doc;
+                heapScores[0] = score;
+                siftDown(heapSize);
+            }
+        }
+
+        // Sorts the heap best first and returns its size
+        int finishTop() {
+            for (int size = heapSize; size > 1; size--) {
+                int doc = heapDocs[0];
+                double score = heapScores[0];
+                heapDocs[0] = heapDocs[size - 1];
+                heapScores[0] = heapScores[size - 1];
+                siftDown(size - 1);
+                heapDocs[size - 1] = doc;
+                heapScores[size - 1] = score;
+            }
+            return heapSize;
+        }
+
+        private static boolean weaker(double score, int doc, double otherScore, int otherDoc) {
+            return score < otherScore || (score == otherScore && doc > otherDoc);
+        }
+
+        private void siftUp(int i) {
+            int doc = heapDocs[i];
+            double score = heapScores[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!weaker(score, doc, heapScores[parent], heapDocs[parent])) break;
+                heapDocs[i] = heapDocs[parent];
+                heapScores[i] = heapScores[parent];
+                i = parent;
+            }
+            heapDocs[i] = doc;
+            heapScores[i] = score;
+        }
+
+        private void siftDown(int n) {
+            int doc = heapDocs[0], i = 0;
+            double score = heapScores[0];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) break;
+                if (child + 1 < n && weaker(heapScores[child + 1], heapDocs[child + 1], heapScores[child], heapDocs[child])) {
+                    child++;
+                }
+                if (!weaker(heapScores[child], heapDocs[child], score, doc)) break;
+                heapDocs[i] = heapDocs[child];
+                heapScores[i] = heapScores[child];
+                i = child;
+            }
+            heapDocs[i] = doc;
+            heapScores[i] = score;
+        }
+    }
+
+    // ---- under the write lock ----
+
+    private void append(T item, Map<String, Integer> tf) {
+        int doc = docs.size();
+        docs.add(item);
+        putDoc(item.getID(), doc);
+
+        int length = 0;
+        for (Map.Entry<String, Integer> entry : tf.entrySet()) {
+            int t = termNumber(entry.getKey());
+            addPosting(t >= 0 ? t : addTerm(entry.getKey()), doc, entry.getValue());
+            length += entry.getValue();
+        }
+        if (doc == docLength.length) docLength = Arrays.copyOf(docLength, doc * 2);
+        docLength[doc] = length;
+        totalLength += length;
+    }
+
+    private void delete(int doc) {
+        forgetDoc(doc);
+        deleted.set(doc);
+        totalLength -= docLength[doc];
+        docs.set(doc, null);
+    }
+
+    private void clear() {
+        terms = new String[1024];
+        postingData = new byte[1024][];
+        postingSize = new int[1024];
+        lastDoc = new int[1024];
+        docCount = new int[1024];
+        termCount = 0;
+        termTable = new int[2048];
+        docs.clear();
+        docTable = new int[2048];
+        docTableUsed = 0;
+        liveDocs = 0;
+        deleted.clear();
+        totalLength = 0;
+    }
+
+    private void compactIfSparse() {
+        int dead = deleted.cardinality();
+        if (dead < 1024 || dead < liveDocs) return;
+
+        List<T> live = new ArrayList<>(liveDocs);
+        for (T item : docs) {
+            if (item != null) live.add(item);
+        }
+        clear();
+        for (T item : live) append(item, termFrequencies(item));
+    }
+
+    // ---- terms ----
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    private int termNumber(String term) {
+        int mask = termTable.length - 1;
+        for (int i = spread(term.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int entry = termTable[i];
+            if (entry == 0) return -1;
+            if (terms[entry - 1].equals(term)) return entry - 1;
+        }
+    }
+
+    private int addTerm(String term) {
+        int t = termCount++;
+        if (t == terms.length) {
+            int capacity = t * 2;
+            terms = Arrays.copyOf(terms, capacity);
+            postingData = Arrays.copyOf(postingData, capacity);
+            postingSize = Arrays.copyOf(postingSize, capacity);
+            lastDoc = Arrays.copyOf(lastDoc, capacity);
+            docCount = Arrays.copyOf(docCount, capacity);
+        }
+        terms[t] = term;
+        postingData[t] = new byte[4];
+        if (termCount * 2 > termTable.length) {
+            termTable = new int[termTable.length * 2];
+            for (int other = 0; other < termCount; other++) placeTerm(other);
+        } else {
+            placeTerm(t);
+        }
+        return t;
+    }
+
+    private void placeTerm(int t) {
+        int mask = termTable.length - 1;
+        int i = spread(terms[t].hashCode()) & mask;
+        while (termTable[i] != 0) i = (i + 1) & mask;
+        termTable[i] = t + 1;
+    }
+
+    private void addPosting(int t, int doc, int tf) {
+        int size = postingSize[t];
+        if (size + 10 > postingData[t].length) {
+            postingData[t] = Arrays.copyOf(postingData[t], Math.max(postingData[t].length * 2, size + 10));
+        }
+        size = writeVarint(postingData[t], size, doc - lastDoc[t]);
+        postingSize[t] = writeVarint(postingData[t], size, tf);
+        lastDoc[t] = doc;
+        docCount[t]++;
+    }
+
+    // ---- documents ----
+
+    private int docOf(String id) {
+        int mask = docTable.length - 1;
+        for (int i = spread(id.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int entry = docTable[i];
+            if (entry == 0) return -1;
+            if (entry > 0 && docs.get(entry - 1).getID().equals(id)) return entry - 1;
+        }
+    }
+
+    private void putDoc(String id, int doc) {
+        if ((docTableUsed + 1) * 2 > docTable.length) {
+            // into a table a third full, leaving removed entries behind
+            int capacity = 2048;
+            while (capacity < (liveDocs + 1) * 3) capacity <<= 1;
+            int[] old = docTable;
+            docTable = new int[capacity];
+            docTableUsed = 0;
+            for (int entry : old) {
+                if (entry > 0) placeDoc(docs.get(entry - 1).getID(), entry);
+            }
+        }
+        placeDoc(id, doc + 1);
+        liveDocs++;
+    }
+
+    private void placeDoc(String id, int entry) {
+        int mask = docTable.length - 1;
+        int i = spread(id.hashCode()) & mask;
+        while (docTable[i] > 0) i = (i + 1) & mask;
+        if (docTable[i] == 0) docTableUsed++;
+        docTable[i] = entry;
+    }
+
+    // Before the document's item is dropped from docs
+    private void forgetDoc(int doc) {
+        int mask = docTable.length - 1;
+        for (int i = spread(docs.get(doc).getID().hashCode()) & mask; ; i = (i + 1) & mask) {
+            if (docTable[i] == 0) return;
+            if (docTable[i] == doc + 1) {
+                docTable[i] = -1;
+                liveDocs--;
+                return;
+            }
+        }
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int readVarint(byte[] in, int pos) {
+        int value = 0, shift = 0;
+        byte b;
+        do {
+            b = in[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int skipVarint(byte[] in, int pos) {
+        while ((in[pos++] & 0x80) != 0) {
+        }
+        return pos;
+    }
+}
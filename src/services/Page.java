@@ -0,0 +1,32 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.Predicate;
+
+// One page of a sorted query. nextCursor resumes right after the last item, or is null
+// when nothing else matches; it stays valid while items are added and removed.
+public record Page<T>(List<T> items, String nextCursor) {
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+
+    // Walks a sorted index from just after the cursor; only the page itself is copied
+    static <T> Page<T> of(NavigableMap<String, T> range, String after, int limit, Predicate<? super T> filter) {
+        if (after != null) range = range.tailMap(after, false);
+
+        List<T> items = new ArrayList<>(Math.min(Math.max(limit, 0), 64));
+        String last = null;
+        for (Map.Entry<String, T> entry : range.entrySet()) {
+            if (filter != null && !filter.test(entry.getValue())) continue;
+            // one more match means there is a next page
+            if (items.size() >= limit) return new Page<>(items, last);
+            items.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new Page<>(items, null);
+    }
+}
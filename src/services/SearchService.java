@@ -1,22 +1,193 @@
 package services;
 
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
+// Indexed lookups over any Searchable: a hash index on the id and a sorted index on the
+// normalized name (lower case, no accents, single spaces), which serves both
+// case-insensitive and prefix queries in O(log n). Lookups may run on any thread while
+// items change; call add/remove/update as they do (one thread at a time per item).
 public class SearchService<T extends Searchable> {
 
-    private final List<T> items;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
 
-    public SearchService(List<T> items)
+    private final Map<String, T> byId = new ConcurrentHashMap<>();
+
+    // Keyed by normalized name + SEPARATOR + id, so equal names don't need a bucket and
+    // every name (or name prefix) is one contiguous range
+    private static final char SEPARATOR = '\0';
+    private final ConcurrentSkipListMap<String, T> byName = new ConcurrentSkipListMap<>();
+
+    // The key each item is filed under, so it can be found again after its name changes
+    private final Map<String, String> indexedName = new ConcurrentHashMap<>();
+
+    public SearchService() {
+    }
+
+    public SearchService(Collection<T> items)
     {
-        this.items = items;
+        for (T item : items) put(item);
+    }
+
+    public static String normalize(String s) {
+        if (s == null) return "";
+        // accents only need stripping outside ASCII, which most names never leave
+        if (!isAscii(s)) s = MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFKD)).replaceAll("");
+
+        StringBuilder out = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isBlank(c)) {
+                space = out.length() > 0;
+            } else {
+                if (space) out.append(' ');
+                out.append(Character.toLowerCase(c));
+                space = false;
+            }
+        }
+        return out.toString();
+    }
+
+    // Same sign as normalize(a).compareTo(normalize(b)), but ASCII strings are compared as
+    // they are read instead of being normalized into new ones. bNormalized skips normalizing
+    // b when it is non-ASCII but already normalized (normalizing twice changes nothing).
+    public static int compareNormalized(String a, String b, boolean bNormalized) {
+        if (a == null) a = "";
+        if (b == null) b = "";
+        if (!isAscii(a)) a = normalize(a);
+        if (!bNormalized && !isAscii(b)) b = normalize(b);
+
+        // leading and trailing blanks read as nothing, a run of blanks inside as one space
+        int i = skipBlanks(a, 0), j = skipBlanks(b, 0);
+        int endA = trimmedLength(a), endB = trimmedLength(b);
+        while (i < endA && j < endB) {
+            char ca = a.charAt(i), cb = b.charAt(j);
+            if (isBlank(ca)) {
+                i = skipBlanks(a, i);
+                ca = ' ';
+            } else {
+                i++;
+            }
+            if (isBlank(cb)) {
+                j = skipBlanks(b, j);
+                cb = ' ';
+            } else {
+                j++;
+            }
+            ca = Character.toLowerCase(ca);
+            cb = Character.toLowerCase(cb);
+            if (ca != cb) return ca - cb;
+        }
+        return (i < endA ? 1 : 0) - (j < endB ? 1 : 0);
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(char c) {
+        return Character.isWhitespace(c) || Character.isISOControl(c);
+    }
+
+    private static int skipBlanks(String s, int from) {
+        while (from < s.length() && isBlank(s.charAt(from))) from++;
+        return from;
+    }
+
+    private static int trimmedLength(String s) {
+        int end = s.length();
+        while (end > 0 && isBlank(s.charAt(end - 1))) end--;
+        return end;
+    }
+
+    public void add(T item) {
+        put(item);
+    }
+
+    private void put(T item) {
+        T previous = byId.put(item.getID(), item);
+        if (previous != null) unfile(previous);
+        file(item);
+    }
+
+    public void remove(T item) {
+        if (byId.remove(item.getID(), item)) unfile(item);
+    }
+
+    // Re-files an item whose name changed
+    public void update(T item) {
+        if (byId.get(item.getID()) != item) return;
+        unfile(item);
+        file(item);
+    }
+
+    private void file(T item) {
+        String key = normalize(item.getName()) + SEPARATOR + item.getID();
+        indexedName.put(item.getID(), key);
+        byName.put(key, item);
+    }
+
+    private void unfile(T item) {
+        String key = indexedName.remove(item.getID());
+        if (key != null) byName.remove(key, item);
+    }
+
+    public void clear() {
+        byId.clear();
+        byName.clear();
+        indexedName.clear();
+    }
+
+    public int size() {
+        return byId.size();
     }
 
     public T searchByID(String id){
-        return items.stream().filter(item -> item.getID().equals(id)).findFirst().orElse(null);
+        return id == null ? null : byId.get(id);
     }
 
+    // Exact, case-sensitive match, as before
     public T searchByName(String name){
-        return items.stream().filter(item -> item.getName().equals(name)).findFirst().orElse(null);
+        for (T item : searchByNameIgnoreCase(name)) {
+            if (item.getName().equals(name)) return item;
+        }
+        return null;
+    }
+
+    // Matches ignoring case, accents and extra spaces
+    public List<T> searchByNameIgnoreCase(String name) {
+        String key = normalize(name) + SEPARATOR;
+        return new ArrayList<>(byName.subMap(key, true, key + Character.MAX_VALUE, false).values());
+    }
+
+    // Up to limit items whose normalized name starts with the normalized prefix, by name
+    public List<T> searchByPrefix(String prefix, int limit) {
+        String from = normalize(prefix);
+        NavigableMap<String, T> range = from.isEmpty() ? byName
+                : byName.subMap(from, true, from + Character.MAX_VALUE, false);
+
+        List<T> results = new ArrayList<>(Math.min(limit, 64));
+        for (T item : range.values()) {
+            if (results.size() >= limit) break;
+            results.add(item);
+        }
+        return results;
+    }
+
+    // All items by name, one page at a time from just after the cursor
+    public Page<T> page(String after, int limit, boolean descending, Predicate<? super T> filter) {
+        return Page.of(descending ? byName.descendingMap() : byName, after, limit, filter);
     }
 }
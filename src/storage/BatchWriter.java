@@ -0,0 +1,29 @@
+package storage;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// Queues rows on a prepared statement and sends them batchSize at a time
+class BatchWriter {
+
+    private final PreparedStatement ps;
+    private final int batchSize;
+    private int queued = 0;
+
+    BatchWriter(PreparedStatement ps, int batchSize) {
+        this.ps = ps;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // Call after the parameters of one row are set
+    void add() throws SQLException {
+        ps.addBatch();
+        if (++queued >= batchSize) flush();
+    }
+
+    void flush() throws SQLException {
+        if (queued == 0) return;
+        ps.executeBatch();
+        queued = 0;
+    }
+}
@@ -0,0 +1,418 @@
+package storage;
+
+import entities.Book;
+import entities.BookColumns;
+import services.Page;
+import services.SearchService;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+// The books of the library: their fields in BookColumns and indexes over the slots there.
+// Ids map to slots in an open-addressing table of ints that is read without locking. The
+// orders by title, by genre then title and by author then title are SortedSlots, compared
+// on the fly from the columns instead of keeping a key string per book and order.
+// Adding, removing and re-filing books take the write lock, sorted reads the read lock.
+final class BookCatalog {
+
+    private static final char SEPARATOR = '\0';
+    private static final String[] NO_PARTS = new String[0];
+
+    private final BookColumns columns;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Order titleOrder, genreOrder, authorOrder;
+    private final SortedSlots byTitle, byGenre, byAuthor;
+
+    // While a bulk load defers them, the sorted orders are only filled by the rebuild after it
+    private boolean indexesDeferred = false;
+
+    // slot + 1 per id, 0 for a free entry and -1 for a removed one; linear probing, at most
+    // half full counting removed entries
+    private volatile AtomicIntegerArray table = new AtomicIntegerArray(1024);
+    private int tableUsed = 0;
+    private volatile int size = 0;
+
+    BookCatalog(BookColumns.Owner owner) {
+        columns = new BookColumns(owner);
+        titleOrder = new Order(null);
+        genreOrder = new Order(columns::genre);
+        authorOrder = new Order(columns::author);
+        byTitle = new SortedSlots(titleOrder);
+        byGenre = new SortedSlots(genreOrder);
+        byAuthor = new SortedSlots(authorOrder);
+    }
+
+    int size() {
+        return size;
+    }
+
+    Book get(String id) {
+        int slot = find(id);
+        return slot < 0 ? null : columns.book(slot);
+    }
+
+    // False if a book with that id exists
+    boolean add(Book book) {
+        lock.writeLock().lock();
+        try {
+            if (find(book.getId()) >= 0) return false;
+            int slot = columns.attach(book);
+            put(book.getId(), slot);
+            if (!indexesDeferred) {
+                byTitle.insert(slot);
+                byGenre.insert(slot);
+                byAuthor.insert(slot);
+            }
+            size++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    Book remove(String id) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(id);
+            if (slot < 0) return null;
+            Book book = columns.book(slot);
+            // once it is out of the table no new borrow can take it
+            delete(id);
+            if (!indexesDeferred) {
+                byTitle.remove(slot);
+                byGenre.remove(slot);
+                byAuthor.remove(slot);
+            }
+            columns.detach(book);
+            size--;
+            return book;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Runs an edit of a book's title, author or genre, filing the book again under the new ones
+    void refile(Book book, Runnable edit) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(book.getId());
+            boolean filed = slot >= 0 && !indexesDeferred && columns.book(slot) == book;
+            if (filed) {
+                byTitle.remove(slot);
+                byGenre.remove(slot);
+                byAuthor.remove(slot);
+            }
+            edit.run();
+            if (filed) {
+                byTitle.insert(slot);
+                byGenre.insert(slot);
+                byAuthor.insert(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void deferIndexes() {
+        lock.writeLock().lock();
+        try {
+            indexesDeferred = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Sorts the whole catalog into the three orders at once (in parallel) and resumes
+    // incremental updates
+    void rebuildIndexes() {
+        lock.writeLock().lock();
+        try {
+            indexesDeferred = false;
+            int[] slots = new int[size];
+            int n = 0;
+            for (int slot = 0, count = columns.slotCount(); slot < count; slot++) {
+                if (columns.book(slot) != null) slots[n++] = slot;
+            }
+            Stream.of(byTitle, byGenre, byAuthor).parallel().forEach(index -> index.rebuild(slots));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            // books kept elsewhere go back to holding their own fields
+            for (int slot = 0, count = columns.slotCount(); slot < count; slot++) {
+                Book book = columns.book(slot);
+                if (book != null) columns.detach(book);
+            }
+            columns.clear();
+            byTitle.clear();
+            byGenre.clear();
+            byAuthor.clear();
+            table = new AtomicIntegerArray(1024);
+            tableUsed = 0;
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    List<String> genres() {
+        return columns.genres();
+    }
+
+    // In the order they were added; a copy
+    List<Book> books() {
+        List<Book> books = new ArrayList<>(size);
+        for (Book book : iterate()) books.add(book);
+        return books;
+    }
+
+    // Walks the slots without copying or locking: books added or removed meanwhile may or
+    // may not be seen
+    Iterable<Book> iterate() {
+        return () -> new Iterator<>() {
+            private int slot = 0;
+            private Book next = advance();
+
+            private Book advance() {
+                for (int count = columns.slotCount(); slot < count; ) {
+                    Book book = columns.book(slot++);
+                    if (book != null) return book;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Book next() {
+                if (next == null) throw new NoSuchElementException();
+                Book book = next;
+                next = advance();
+                return book;
+            }
+        };
+    }
+
+    // ---- sorted queries ----
+
+    // Exact, case-sensitive match
+    Book findByTitle(String title) {
+        for (Book book : findByTitleIgnoreCase(title)) {
+            if (book.getTitle().equals(title)) return book;
+        }
+        return null;
+    }
+
+    // Matches ignoring case, accents and extra spaces
+    List<Book> findByTitleIgnoreCase(String title) {
+        return page(byTitle, titleOrder, new String[]{SearchService.normalize(title)}, null, Integer.MAX_VALUE,
+                false, null).items();
+    }
+
+    // Up to limit books whose normalized title starts with the normalized prefix, by title
+    List<Book> findByTitlePrefix(String prefix, int limit) {
+        String from = SearchService.normalize(prefix);
+        String[] lower = {from}, upper = {from + Character.MAX_VALUE};
+        List<Book> results = new ArrayList<>(Math.min(limit, 64));
+        lock.readLock().lock();
+        try {
+            SortedSlots.Cursor at = from.isEmpty() ? byTitle.first()
+                    : byTitle.lowerBound(slot -> titleOrder.compareTo(slot, lower) < 0);
+            for (; at.valid() && results.size() < limit; at.next()) {
+                if (!from.isEmpty() && titleOrder.compareTo(at.slot(), upper) >= 0) break;
+                results.add(columns.book(at.slot()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    // Books in slot order, which is the order they were added. The cursor is the last slot
+    // shown; slots never move, so it stays valid while books are added and removed.
+    Page<Book> pageBySlot(String after, int limit) {
+        List<Book> items = new ArrayList<>(Math.min(Math.max(limit, 0), 64));
+        int last = -1, count = columns.slotCount();
+        for (int slot = after == null ? 0 : Integer.parseInt(after) + 1; slot < count; slot++) {
+            Book book = columns.book(slot);
+            if (book == null) continue;
+            // one more book means there is a next page
+            if (items.size() >= limit) return new Page<>(items, String.valueOf(last));
+            items.add(book);
+            last = slot;
+        }
+        return new Page<>(items, null);
+    }
+
+    // Paged browsing, with the same cursors as the string-keyed indexes had:
+    // normalized [group SEPARATOR] title SEPARATOR id
+    Page<Book> pageByTitle(String after, int limit, boolean descending, Predicate<? super Book> filter) {
+        return page(byTitle, titleOrder, NO_PARTS, after, limit, descending, filter);
+    }
+
+    Page<Book> pageByGenre(String genre, String after, int limit, boolean descending, Predicate<? super Book> filter) {
+        return page(byGenre, genreOrder, new String[]{SearchService.normalize(genre)}, after, limit, descending, filter);
+    }
+
+    Page<Book> pageByAuthor(String author, String after, int limit, boolean descending, Predicate<? super Book> filter) {
+        return page(byAuthor, authorOrder, new String[]{SearchService.normalize(author)}, after, limit, descending, filter);
+    }
+
+    // Up to limit books of the range (the books whose leading key parts equal range) from
+    // just after the cursor; one more match means there is a next page
+    private Page<Book> page(SortedSlots index, Order order, String[] range, String after, int limit,
+                            boolean descending, Predicate<? super Book> filter) {
+        String[] from = after == null ? null : after.split(String.valueOf(SEPARATOR), -1);
+        List<Book> items = new ArrayList<>(Math.min(Math.max(limit, 0), 64));
+        lock.readLock().lock();
+        try {
+            SortedSlots.Cursor at;
+            if (!descending) {
+                at = from != null ? index.lowerBound(slot -> order.compareTo(slot, from) <= 0)
+                        : index.lowerBound(slot -> order.compareTo(slot, range) < 0);
+            } else {
+                at = from != null ? index.lowerBound(slot -> order.compareTo(slot, from) < 0)
+                        : index.lowerBound(slot -> order.compareTo(slot, range) <= 0);
+                at.previous();
+            }
+
+            int last = -1;
+            for (; at.valid(); step(at, descending)) {
+                int slot = at.slot();
+                if (order.compareTo(slot, range) != 0) break;
+                Book book = columns.book(slot);
+                if (filter != null && !filter.test(book)) continue;
+                if (items.size() >= limit) return new Page<>(items, order.cursor(last));
+                items.add(book);
+                last = slot;
+            }
+            return new Page<>(items, null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void step(SortedSlots.Cursor at, boolean descending) {
+        if (descending) at.previous();
+        else at.next();
+    }
+
+    // [group,] title, id: text compares normalized, the id as it is
+    private final class Order implements IntBinaryOperator {
+        private final IntFunction<String> group;
+
+        Order(IntFunction<String> group) {
+            this.group = group;
+        }
+
+        @Override
+        public int applyAsInt(int a, int b) {
+            int c;
+            if (group != null && (c = SearchService.compareNormalized(group.apply(a), group.apply(b), false)) != 0) {
+                return c;
+            }
+            if ((c = SearchService.compareNormalized(columns.title(a), columns.title(b), false)) != 0) return c;
+            return id(a).compareTo(id(b));
+        }
+
+        // A slot against normalized key parts, as many as there are: 0 if they all match
+        int compareTo(int slot, String[] parts) {
+            int part = 0, c;
+            if (group != null) {
+                if (part == parts.length) return 0;
+                if ((c = SearchService.compareNormalized(group.apply(slot), parts[part++], true)) != 0) return c;
+            }
+            if (part == parts.length) return 0;
+            if ((c = SearchService.compareNormalized(columns.title(slot), parts[part++], true)) != 0) return c;
+            if (part == parts.length) return 0;
+            return id(slot).compareTo(parts[part]);
+        }
+
+        String cursor(int slot) {
+            String key = SearchService.normalize(columns.title(slot)) + SEPARATOR + id(slot);
+            return group == null ? key : SearchService.normalize(group.apply(slot)) + SEPARATOR + key;
+        }
+
+        private String id(int slot) {
+            return columns.book(slot).getId();
+        }
+    }
+
+    // ---- id table ----
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    private int find(String id) {
+        AtomicIntegerArray t = table;
+        int mask = t.length() - 1;
+        for (int i = spread(id.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int entry = t.get(i);
+            if (entry == 0) return -1;
+            if (entry > 0) {
+                Book book = columns.book(entry - 1);
+                if (book != null && book.getId().equals(id)) return entry - 1;
+            }
+        }
+    }
+
+    // Under the write lock, for an id that isn't in the table
+    private void put(String id, int slot) {
+        if ((tableUsed + 1) * 2 > table.length()) resize();
+        AtomicIntegerArray t = table;
+        int mask = t.length() - 1;
+        int i = spread(id.hashCode()) & mask;
+        while (t.get(i) > 0) i = (i + 1) & mask;
+        if (t.get(i) == 0) tableUsed++;
+        t.set(i, slot + 1);
+    }
+
+    private void delete(String id) {
+        AtomicIntegerArray t = table;
+        int mask = t.length() - 1;
+        for (int i = spread(id.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int entry = t.get(i);
+            if (entry == 0) return;
+            if (entry > 0 && columns.book(entry - 1).getId().equals(id)) {
+                t.set(i, -1);
+                return;
+            }
+        }
+    }
+
+    // Into a table a third full, leaving removed entries behind
+    private void resize() {
+        int capacity = 1024;
+        while (capacity < (size + 1) * 3) capacity <<= 1;
+        AtomicIntegerArray old = table, t = new AtomicIntegerArray(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            int entry = old.get(j);
+            if (entry <= 0) continue;
+            int i = spread(columns.book(entry - 1).getId().hashCode()) & mask;
+            while (t.get(i) != 0) i = (i + 1) & mask;
+            t.set(i, entry);
+        }
+        table = t;
+        tableUsed = size;
+    }
+}
@@ -0,0 +1,319 @@
+package storage;
+
+import entities.Admin;
+import entities.Book;
+import entities.User;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+// Writes books, users, borrowed and history edges to one CSV or JSON Lines file each
+// (books.csv, users.csv, ...; .gz added when compressed). books.csv can be imported again.
+//
+// The four files are written in parallel straight from LibrarySystem's id maps: rows are
+// formatted into a buffer that goes to the file channel in 64 KB writes, so nothing the size
+// of the catalog is built up. Nothing is locked for longer than reading one row, so the
+// library keeps serving while an export runs. Each row is read consistently; to get one
+// point in time across all rows the export is repeated (up to attempts times) until a pass
+// completes without any change being recorded, and the report says whether one did.
+// Files are written under a temporary name and only replace the previous export at the end.
+public final class CatalogExport {
+
+    public record Report(Map<String, Long> rows, int attempts, boolean consistent, long millis) {
+
+        @Override
+        public String toString() {
+            return "Exported " + rows + " in " + millis + " ms" +
+                    (consistent ? "." : " (the library kept changing during all " + attempts +
+                            " attempts, so rows were read at slightly different times).");
+        }
+    }
+
+    private static final int CHUNK = 64 * 1024;
+    private static final String[] TABLES = {"books", "users", "borrowed", "history"};
+
+    private final LibrarySystem system;
+    private final CatalogImport.Format format;
+    private final boolean gzip;
+
+    public CatalogExport(LibrarySystem system, CatalogImport.Format format, boolean gzip) {
+        this.system = system;
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    public Report exportTo(Path directory, int attempts) throws IOException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(directory);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(TABLES.length, r -> {
+            Thread t = new Thread(r, "export-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            Map<String, Long> rows;
+            boolean consistent;
+            int attempt = 0;
+            do {
+                attempt++;
+                long before = system.getChanges().changeCount();
+                rows = writeAll(workers, directory);
+                consistent = system.getChanges().changeCount() == before;
+            } while (!consistent && attempt < Math.max(1, attempts));
+
+            for (String table : TABLES) {
+                Files.move(temporary(directory, table), file(directory, table),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return new Report(rows, attempt, consistent, System.currentTimeMillis() - start);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private Map<String, Long> writeAll(ExecutorService workers, Path directory) throws IOException {
+        List<Future<Long>> counts = new ArrayList<>();
+        for (String table : TABLES) {
+            counts.add(workers.submit(() -> write(table, temporary(directory, table))));
+        }
+
+        Map<String, Long> rows = new LinkedHashMap<>();
+        for (int i = 0; i < TABLES.length; i++) {
+            try {
+                rows.put(TABLES[i], counts.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Export interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Exporting " + TABLES[i] + " failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return rows;
+    }
+
+    private Path file(Path directory, String table) {
+        return directory.resolve(table + (format == CatalogImport.Format.CSV ? ".csv" : ".jsonl") + (gzip ? ".gz" : ""));
+    }
+
+    private Path temporary(Path directory, String table) {
+        Path file = file(directory, table);
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    // ---- on the worker threads ----
+
+    private long write(String table, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             RowWriter out = new RowWriter(channel, format, gzip)) {
+            return switch (table) {
+                case "books" -> writeBooks(out);
+                case "users" -> writeUsers(out);
+                case "borrowed" -> writeEdges(out, false);
+                default -> writeEdges(out, true);
+            };
+        }
+    }
+
+    private long writeBooks(RowWriter out) throws IOException {
+        out.header("id", "title", "author", "genre", "copies");
+        long rows = 0;
+        for (Book book : system.iterateBooks()) {
+            // the book's lock keeps an admin edit from landing halfway through the row
+            ReentrantLock lock = system.bookLock(book.getId());
+            lock.lock();
+            try {
+                out.field("id", book.getId()).field("title", book.getTitle()).field("author", book.getAuthor())
+                        .field("genre", book.getGenre()).field("copies", book.getAvailableCopies());
+            } finally {
+                lock.unlock();
+            }
+            out.endRow();
+            rows++;
+        }
+        return rows;
+    }
+
+    private long writeUsers(RowWriter out) throws IOException {
+        out.header("id", "name", "role");
+        long rows = 0;
+        for (User user : system.getUsersById().values()) {
+            out.field("id", user.getId()).field("name", user.getName())
+                    .field("role", user instanceof Admin ? "admin" : "user").endRow();
+            rows++;
+        }
+        return rows;
+    }
+
+    // Each user's edges are copied under the user's lock. History still in storage is read
+    // in one pass over the stored table, without loading it into the users; what they
+    // returned since is merged in. Users whose history is in memory are written from there.
+    private long writeEdges(RowWriter out, boolean history) throws IOException {
+        out.header("userId", "bookId");
+        long[] rows = {0};
+        Set<String> fromStorage = new HashSet<>();
+        if (history) {
+            system.forEachStoredHistory((user, stored) -> {
+                if (user.isHistoryLoaded()) return;
+                Set<Book> merged = new LinkedHashSet<>(stored);
+                merged.addAll(user.getLoadedHistoryBooks());
+                rows[0] += writeEdges(out, user, merged);
+                fromStorage.add(user.getId());
+            });
+        }
+
+        for (User user : system.getUsersById().values()) {
+            if (!history) {
+                rows[0] += writeEdges(out, user, user.getBorrowedBooks());
+            } else if (!fromStorage.contains(user.getId())) {
+                // loaded, or nothing stored: all of it is in memory
+                rows[0] += writeEdges(out, user, user.getLoadedHistoryBooks());
+            }
+        }
+        return rows[0];
+    }
+
+    private static long writeEdges(RowWriter out, User user, Collection<Book> books) throws IOException {
+        for (Book book : books) {
+            out.field("userId", user.getId()).field("bookId", book.getId()).endRow();
+        }
+        return books.size();
+    }
+
+    // Formats rows into a reused buffer and writes it to the channel (or through gzip) in
+    // CHUNK-sized pieces
+    private static final class RowWriter implements AutoCloseable {
+        private final OutputStream out;
+        private final CatalogImport.Format format;
+        private final StringBuilder buffer = new StringBuilder(CHUNK + 4096);
+        private int column = 0;
+
+        RowWriter(FileChannel channel, CatalogImport.Format format, boolean gzip) throws IOException {
+            OutputStream channelOut = Channels.newOutputStream(channel);
+            this.out = gzip ? new GZIPOutputStream(channelOut, CHUNK) : channelOut;
+            this.format = format;
+        }
+
+        void header(String... names) throws IOException {
+            if (format != CatalogImport.Format.CSV) return;
+            for (String name : names) {
+                if (column++ > 0) buffer.append(',');
+                buffer.append(name);
+            }
+            endRow();
+        }
+
+        RowWriter field(String name, String value) {
+            start(name);
+            if (format == CatalogImport.Format.CSV) csv(value);
+            else json(value);
+            return this;
+        }
+
+        RowWriter field(String name, int value) {
+            start(name);
+            buffer.append(value);
+            return this;
+        }
+
+        private void start(String name) {
+            if (format == CatalogImport.Format.CSV) {
+                if (column > 0) buffer.append(',');
+            } else {
+                buffer.append(column == 0 ? '{' : ',');
+                buffer.append('"').append(name).append("\":");
+            }
+            column++;
+        }
+
+        void endRow() throws IOException {
+            if (format == CatalogImport.Format.JSONL && column > 0) buffer.append('}');
+            buffer.append('\n');
+            column = 0;
+            if (buffer.length() >= CHUNK) flush();
+        }
+
+        private void csv(String value) {
+            if (value == null) return;
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                buffer.append(value);
+                return;
+            }
+            buffer.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') buffer.append('"');
+                // a record has to stay on one line to be imported again
+                buffer.append(c == '\n' || c == '\r' ? ' ' : c);
+            }
+            buffer.append('"');
+        }
+
+        private void json(String value) {
+            if (value == null) {
+                buffer.append("null");
+                return;
+            }
+            buffer.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"' -> buffer.append("\\\"");
+                    case '\\' -> buffer.append("\\\\");
+                    case '\n' -> buffer.append("\\n");
+                    case '\r' -> buffer.append("\\r");
+                    case '\t' -> buffer.append("\\t");
+                    default -> {
+                        if (c < 0x20) buffer.append(String.format("\\u%04x", (int) c));
+                        else buffer.append(c);
+                    }
+                }
+            }
+            buffer.append('"');
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer.toString().getBytes(StandardCharsets.UTF_8));
+            buffer.setLength(0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package storage;
+
+import entities.Book;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bulk-loads books from a CSV or JSON Lines file.
+//
+// The calling thread streams the file in chunks of lines; worker threads parse and validate
+// each chunk into Books; the calling thread adds finished chunks to LibrarySystem in file
+// order, one journal sync per chunk. At most a few chunks are in flight, so memory stays
+// bounded however large the file is. Duplicate ids and invalid rows are counted and
+// sampled in the report instead of printed one by one.
+//
+// CSV: an optional header naming the columns (id, title, author, genre, copies, in any
+// order), otherwise the columns in that order. Fields may be quoted, "" escapes a quote;
+// a record must fit on one line. JSONL: one flat object per line with the same keys.
+public final class CatalogImport {
+
+    public record Report(long rows, long imported, long duplicates, long invalid,
+                         List<String> problems, long millis) {
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder()
+                    .append("Imported ").append(imported).append(" of ").append(rows).append(" rows in ")
+                    .append(millis).append(" ms (").append(duplicates).append(" duplicate ids, ")
+                    .append(invalid).append(" invalid rows).");
+            for (String problem : problems) sb.append("\n  ").append(problem);
+            if (problems.size() < duplicates + invalid) sb.append("\n  ...");
+            return sb.toString();
+        }
+    }
+
+    public enum Format { CSV, JSONL }
+
+    private static final String[] COLUMNS = {"id", "title", "author", "genre", "copies"};
+    private static final int CHUNK_LINES = 8192;
+    private static final int MAX_PROBLEMS = 20;
+
+    // A chunk of lines, numbered from firstLine
+    private record Chunk(long firstLine, List<String> lines) {}
+
+    private record Parsed(List<Book> books, int invalid, List<String> problems) {}
+
+    private final LibrarySystem system;
+    private final int threads;
+
+    public CatalogImport(LibrarySystem system, int threads) {
+        this.system = system;
+        this.threads = Math.max(1, threads);
+    }
+
+    public Report importFile(Path path) throws IOException {
+        long start = System.currentTimeMillis();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "import-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        long rows = 0, imported = 0, duplicates = 0, invalid = 0;
+        List<String> problems = new ArrayList<>();
+        // one parallel build of the search indexes at the end instead of an update per book
+        system.deferIndexes();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8), 1 << 16)) {
+
+            String first = reader.readLine();
+            long lineNumber = 1;
+            if (first != null && first.startsWith("\uFEFF")) first = first.substring(1);
+            Format format = formatOf(path, first);
+
+            int[] columns = {0, 1, 2, 3, 4};
+            List<String> lines = new ArrayList<>(CHUNK_LINES);
+            if (first != null) {
+                int[] header = format == Format.CSV ? header(first) : null;
+                if (header != null) columns = header;
+                else lines.add(first);
+            }
+            final int[] order = columns;
+
+            ArrayDeque<Future<Parsed>> inFlight = new ArrayDeque<>();
+            long chunkStart = lines.isEmpty() ? 2 : 1;
+            String line;
+            while (true) {
+                line = reader.readLine();
+                if (line != null) {
+                    lineNumber++;
+                    lines.add(line);
+                    if (lines.size() < CHUNK_LINES) continue;
+                }
+                if (!lines.isEmpty()) {
+                    Chunk chunk = new Chunk(chunkStart, lines);
+                    inFlight.add(workers.submit(() -> parse(chunk, format, order)));
+                    chunkStart = lineNumber + 1;
+                    lines = new ArrayList<>(CHUNK_LINES);
+                }
+
+                // add the oldest chunk once enough are queued, or everything at the end
+                while (!inFlight.isEmpty() && (line == null || inFlight.size() >= threads * 2)) {
+                    Parsed parsed = await(inFlight.poll());
+                    rows += parsed.books().size() + parsed.invalid();
+                    invalid += parsed.invalid();
+                    addProblems(problems, parsed.problems());
+
+                    List<Book> rejected = system.addBooks(parsed.books());
+                    imported += parsed.books().size() - rejected.size();
+                    duplicates += rejected.size();
+                    for (Book book : rejected) addProblems(problems, List.of("Duplicate id " + book.getId()));
+                }
+                if (line == null) break;
+            }
+        } finally {
+            workers.shutdownNow();
+            system.rebuildIndexes();
+        }
+        return new Report(rows, imported, duplicates, invalid, problems, System.currentTimeMillis() - start);
+    }
+
+    private static void addProblems(List<String> problems, List<String> more) {
+        for (String problem : more) {
+            if (problems.size() >= MAX_PROBLEMS) return;
+            problems.add(problem);
+        }
+    }
+
+    private static Parsed await(Future<Parsed> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static Format formatOf(Path path, String firstLine) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) return Format.JSONL;
+        if (name.endsWith(".csv")) return Format.CSV;
+        return firstLine != null && firstLine.stripLeading().startsWith("{") ? Format.JSONL : Format.CSV;
+    }
+
+    // Column positions if the line is a header naming every column, else null
+    private static int[] header(String line) {
+        List<String> names;
+        try {
+            names = splitCsv(line);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int[] columns = new int[COLUMNS.length];
+        for (int c = 0; c < COLUMNS.length; c++) {
+            columns[c] = -1;
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).trim().equalsIgnoreCase(COLUMNS[c])) columns[c] = i;
+            }
+            if (columns[c] < 0) return null;
+        }
+        return columns;
+    }
+
+    // ---- on the worker threads ----
+
+    private Parsed parse(Chunk chunk, Format format, int[] columns) {
+        List<Book> books = new ArrayList<>(chunk.lines().size());
+        List<String> problems = new ArrayList<>();
+        int invalid = 0;
+
+        for (int i = 0; i < chunk.lines().size(); i++) {
+            String line = chunk.lines().get(i);
+            if (line.isBlank()) continue;
+            try {
+                String[] fields = new String[COLUMNS.length];
+                if (format == Format.CSV) {
+                    List<String> values = splitCsv(line);
+                    for (int c = 0; c < COLUMNS.length; c++) {
+                        fields[c] = columns[c] < values.size() ? values.get(columns[c]) : null;
+                    }
+                } else {
+                    Map<String, String> values = parseJsonObject(line);
+                    for (int c = 0; c < COLUMNS.length; c++) fields[c] = values.get(COLUMNS[c]);
+                }
+                books.add(toBook(fields));
+            } catch (Exception e) {
+                invalid++;
+                if (problems.size() < MAX_PROBLEMS) problems.add("Line " + (chunk.firstLine() + i) + ": " + e.getMessage());
+            }
+        }
+        return new Parsed(books, invalid, problems);
+    }
+
+    private Book toBook(String[] fields) throws Exception {
+        String id = trimmed(fields[0]), title = trimmed(fields[1]);
+        if (id == null) throw new IllegalArgumentException("missing id");
+        if (title == null) throw new IllegalArgumentException("missing title");
+
+        String copies = trimmed(fields[4]);
+        int count;
+        try {
+            count = copies == null ? 0 : Integer.parseInt(copies);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("copies is not a number: " + copies);
+        }
+        if (count < 0) throw new IllegalArgumentException("negative copies");
+        return new Book(id, title, trimmed(fields[2]), trimmed(fields[3]), count);
+    }
+
+    private static String trimmed(String s) {
+        if (s == null) return null;
+        s = s.trim();
+        return s.isEmpty() ? null : s;
+    }
+
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>(COLUMNS.length);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("unterminated quote");
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // A flat JSON object of string, number, boolean or null values
+    static Map<String, String> parseJsonObject(String line) {
+        Map<String, String> values = new HashMap<>();
+        int[] pos = {skipSpace(line, 0)};
+        expect(line, pos, '{');
+        if (peek(line, pos) == '}') {
+            pos[0]++;
+            return values;
+        }
+        while (true) {
+            String key = jsonString(line, pos);
+            expect(line, pos, ':');
+            values.put(key, jsonValue(line, pos));
+            char c = peek(line, pos);
+            pos[0]++;
+            if (c == '}') break;
+            if (c != ',') throw new IllegalArgumentException("expected , or } at column " + pos[0]);
+        }
+        if (skipSpace(line, pos[0]) != line.length()) throw new IllegalArgumentException("text after the object");
+        return values;
+    }
+
+    private static String jsonValue(String s, int[] pos) {
+        if (peek(s, pos) == '"') return jsonString(s, pos);
+
+        int start = pos[0];
+        while (pos[0] < s.length() && ",} \t".indexOf(s.charAt(pos[0])) < 0) pos[0]++;
+        String literal = s.substring(start, pos[0]);
+        if (literal.isEmpty() || literal.startsWith("{") || literal.startsWith("[")) {
+            throw new IllegalArgumentException("unsupported value at column " + (start + 1));
+        }
+        return literal.equals("null") ? null : literal;
+    }
+
+    private static String jsonString(String s, int[] pos) {
+        expect(s, pos, '"');
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            if (pos[0] >= s.length()) throw new IllegalArgumentException("unterminated string");
+            char c = s.charAt(pos[0]++);
+            if (c == '"') return out.toString();
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (pos[0] >= s.length()) throw new IllegalArgumentException("unterminated string");
+            char e = s.charAt(pos[0]++);
+            switch (e) {
+                case 'n' -> out.append('\n');
+                case 't' -> out.append('\t');
+                case 'r' -> out.append('\r');
+                case 'b' -> out.append('\b');
+                case 'f' -> out.append('\f');
+                case 'u' -> {
+                    if (pos[0] + 4 > s.length()) throw new IllegalArgumentException("bad \\u escape");
+                    out.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                }
+                default -> out.append(e);
+            }
+        }
+    }
+
+    private static void expect(String s, int[] pos, char c) {
+        if (peek(s, pos) != c) throw new IllegalArgumentException("expected " + c + " at column " + (pos[0] + 1));
+        pos[0]++;
+    }
+
+    // The next non-space character (skipping to it), or 0 at the end
+    private static char peek(String s, int[] pos) {
+        pos[0] = skipSpace(s, pos[0]);
+        return pos[0] < s.length() ? s.charAt(pos[0]) : 0;
+    }
+
+    private static int skipSpace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+}
@@ -0,0 +1,229 @@
+package storage;
+
+import entities.Book;
+import entities.User;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+// Changes are recorded concurrently under the shared side of a read/write lock; drain and
+// restore swap the change set under the exclusive side. Callers serialize changes to the
+// same book, user or edge (LibrarySystem's striped locks), which keeps the per-id
+// coalescing below and the journal order consistent.
+public class ChangeTracker {
+
+    public record Edge(String userId, String bookId) {}
+
+    // Everything that changed since the last successful save; recorded is how many changes
+    // were reported before they coalesced into these sets, journalMark is the journal
+    // offset the change set covers (-1 without a journal)
+    public record Changes(Set<String> dirtyBooks, Set<String> removedBooks,
+                          Set<String> dirtyUsers, Set<String> removedUsers,
+                          Set<Edge> borrowedAdded, Set<Edge> borrowedRemoved,
+                          Set<Edge> historyAdded, Set<Edge> historyRemoved,
+                          int recorded, long journalMark) {
+
+        public boolean isEmpty() {
+            return dirtyBooks.isEmpty() && removedBooks.isEmpty()
+                    && dirtyUsers.isEmpty() && removedUsers.isEmpty()
+                    && borrowedAdded.isEmpty() && borrowedRemoved.isEmpty()
+                    && historyAdded.isEmpty() && historyRemoved.isEmpty();
+        }
+
+        public int size() {
+            return dirtyBooks.size() + removedBooks.size() + dirtyUsers.size() + removedUsers.size()
+                    + borrowedAdded.size() + borrowedRemoved.size()
+                    + historyAdded.size() + historyRemoved.size();
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Changes pending = empty();
+    private final AtomicInteger recorded = new AtomicInteger();
+    // Every change ever recorded; unlike recorded, never reset
+    private final AtomicLong changeCount = new AtomicLong();
+
+    // Every recorded change is also appended here, in the same order, when attached
+    private volatile Journal journal;
+
+    // Told the number of pending changes after each one is recorded (write-behind size trigger)
+    private volatile IntConsumer listener;
+
+    private static Changes empty() {
+        return new Changes(ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(),
+                ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(),
+                ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(),
+                ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(), 0, -1);
+    }
+
+    void attach(Journal journal) {
+        lock.writeLock().lock();
+        try {
+            this.journal = journal;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void setListener(IntConsumer listener) {
+        this.listener = listener;
+    }
+
+    // Applies one change to the pending set (and the journal) while no drain can run
+    private void record(Runnable change) {
+        lock.readLock().lock();
+        try {
+            change.run();
+            recorded.incrementAndGet();
+            changeCount.incrementAndGet();
+            IntConsumer l = listener;
+            if (l != null) l.accept(pending.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Books and users: a removed id stays removed even if re-added, so the old row
+    // (and its cascaded edges) is deleted before the new one is upserted.
+    public void bookChanged(Book book) {
+        record(() -> {
+            pending.dirtyBooks().add(book.getId());
+            if (journal != null) journal.bookPut(book);
+        });
+    }
+
+    public void bookRemoved(String bookId) {
+        record(() -> {
+            pending.dirtyBooks().remove(bookId);
+            pending.removedBooks().add(bookId);
+            if (journal != null) journal.bookRemoved(bookId);
+        });
+    }
+
+    public void userChanged(User user) {
+        record(() -> {
+            pending.dirtyUsers().add(user.getId());
+            if (journal != null) journal.userPut(user);
+        });
+    }
+
+    public void userRemoved(String userId) {
+        record(() -> {
+            pending.dirtyUsers().remove(userId);
+            pending.removedUsers().add(userId);
+            if (journal != null) journal.userRemoved(userId);
+        });
+    }
+
+    // Edges: the last operation on an edge wins
+    public void borrowedAdded(String userId, String bookId) {
+        record(() -> {
+            Edge edge = new Edge(userId, bookId);
+            pending.borrowedRemoved().remove(edge);
+            pending.borrowedAdded().add(edge);
+            if (journal != null) journal.borrowedAdded(userId, bookId);
+        });
+    }
+
+    public void borrowedRemoved(String userId, String bookId) {
+        record(() -> {
+            Edge edge = new Edge(userId, bookId);
+            pending.borrowedAdded().remove(edge);
+            pending.borrowedRemoved().add(edge);
+            if (journal != null) journal.borrowedRemoved(userId, bookId);
+        });
+    }
+
+    public void historyAdded(String userId, String bookId) {
+        record(() -> {
+            Edge edge = new Edge(userId, bookId);
+            pending.historyRemoved().remove(edge);
+            pending.historyAdded().add(edge);
+            if (journal != null) journal.historyAdded(userId, bookId);
+        });
+    }
+
+    public void historyRemoved(String userId, String bookId) {
+        record(() -> {
+            Edge edge = new Edge(userId, bookId);
+            pending.historyAdded().remove(edge);
+            pending.historyRemoved().add(edge);
+            if (journal != null) journal.historyRemoved(userId, bookId);
+        });
+    }
+
+    // End of one user-visible operation: waits until its journal records are on disk.
+    // Holds no lock, so operations from other threads share the same fsync.
+    public void commit() {
+        Journal j = journal;
+        if (j != null) j.sync();
+    }
+
+    public boolean hasChanges() {
+        return !pending.isEmpty();
+    }
+
+    // Unchanged between two reads means nothing changed in between
+    public long changeCount() {
+        return changeCount.get();
+    }
+
+    // Distinct changes waiting for the next save
+    public int pendingSize() {
+        return pending.size();
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            pending = empty();
+            recorded.set(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Hands the pending changes to a save and starts a fresh change set
+    public Changes drain() {
+        lock.writeLock().lock();
+        try {
+            Changes drained = pending;
+            pending = empty();
+            long mark = (journal == null) ? -1 : journal.position();
+            return new Changes(drained.dirtyBooks(), drained.removedBooks(), drained.dirtyUsers(),
+                    drained.removedUsers(), drained.borrowedAdded(), drained.borrowedRemoved(),
+                    drained.historyAdded(), drained.historyRemoved(), recorded.getAndSet(0), mark);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Puts back the changes of a failed save; anything recorded since the drain wins
+    public void restore(Changes failed) {
+        lock.writeLock().lock();
+        try {
+            recorded.addAndGet(failed.recorded());
+            pending.dirtyBooks().addAll(failed.dirtyBooks());
+            pending.removedBooks().addAll(failed.removedBooks());
+            pending.dirtyUsers().addAll(failed.dirtyUsers());
+            pending.removedUsers().addAll(failed.removedUsers());
+
+            restoreEdges(failed.borrowedAdded(), pending.borrowedAdded(), pending.borrowedRemoved());
+            restoreEdges(failed.borrowedRemoved(), pending.borrowedRemoved(), pending.borrowedAdded());
+            restoreEdges(failed.historyAdded(), pending.historyAdded(), pending.historyRemoved());
+            restoreEdges(failed.historyRemoved(), pending.historyRemoved(), pending.historyAdded());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void restoreEdges(Set<Edge> failed, Set<Edge> same, Set<Edge> opposite) {
+        for (Edge edge : failed) {
+            if (!opposite.contains(edge)) same.add(edge);
+        }
+    }
+}
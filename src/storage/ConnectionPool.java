@@ -0,0 +1,209 @@
+package storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Small fixed-size JDBC connection pool so storage calls don't pay connect + auth every time
+public class ConnectionPool implements AutoCloseable {
+
+    public record Stats(int active, int idle, int maxSize, long acquired, long waited,
+                        long totalWaitMillis, long maxWaitMillis) {
+        @Override
+        public String toString() {
+            return "active=" + active + ", idle=" + idle + ", max=" + maxSize +
+                    ", acquired=" + acquired + ", waited=" + waited +
+                    ", totalWait=" + totalWaitMillis + "ms, maxWait=" + maxWaitMillis + "ms";
+        }
+    }
+
+    private final String url, user, password;
+    private final int maxSize;
+    private final long validateAfterMillis;
+    private final long acquireTimeoutMillis;
+    private final int statementCacheSize;
+    private final List<String> initStatements;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private int open = 0;
+    private boolean closed = false;
+
+    private long acquired = 0, waited = 0, totalWaitNanos = 0, maxWaitNanos = 0;
+
+    public ConnectionPool(String url, String user, String password, int maxSize,
+                          long validateAfterMillis, long acquireTimeoutMillis, int statementCacheSize,
+                          List<String> initStatements) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.validateAfterMillis = validateAfterMillis;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.initStatements = initStatements;
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        boolean hadToWait = false;
+
+        while (true) {
+            PooledConnection candidate = null;
+            boolean create = false;
+
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && open >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLException("Timed out after " + acquireTimeoutMillis +
+                                "ms waiting for a database connection (" + stats() + ")");
+                    }
+                    hadToWait = true;
+                    released.awaitNanos(remaining);
+                }
+                if (closed) throw new SQLException("Connection pool is closed.");
+
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollFirst();
+                } else {
+                    open++;
+                    create = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection.", e);
+            } finally {
+                lock.unlock();
+            }
+
+            // Connecting and validating happen outside the lock
+            try {
+                if (create) {
+                    candidate = new PooledConnection(this, openPhysical(), statementCacheSize);
+                } else if (!isValid(candidate)) {
+                    discard(candidate);
+                    continue;
+                }
+            } catch (SQLException e) {
+                if (create) discard(null);
+                throw e;
+            }
+
+            candidate.touch();
+            recordAcquire(System.nanoTime() - start, hadToWait);
+            return candidate;
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        Connection raw = DriverManager.getConnection(url, user, password);
+        try (Statement stmt = raw.createStatement()) {
+            for (String sql : initStatements) stmt.execute(sql);
+        } catch (SQLException e) {
+            raw.close();
+            throw e;
+        }
+        return raw;
+    }
+
+    // Connections idle for a while may have been dropped by the server
+    private boolean isValid(PooledConnection conn) {
+        if (System.currentTimeMillis() - conn.lastUsed() < validateAfterMillis) return true;
+        try {
+            return conn.connection().isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void release(PooledConnection conn) {
+        boolean reusable;
+        try {
+            conn.reset();
+            reusable = !conn.connection().isClosed();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        if (!reusable) {
+            discard(conn);
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                open--;
+                conn.closePhysical();
+                return;
+            }
+            conn.touch();
+            idle.addFirst(conn);
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void discard(PooledConnection conn) {
+        if (conn != null) conn.closePhysical();
+        lock.lock();
+        try {
+            open--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordAcquire(long waitNanos, boolean hadToWait) {
+        lock.lock();
+        try {
+            acquired++;
+            if (hadToWait) {
+                waited++;
+                totalWaitNanos += waitNanos;
+                maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(open - idle.size(), idle.size(), maxSize, acquired, waited,
+                    TimeUnit.NANOSECONDS.toMillis(totalWaitNanos), TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (PooledConnection conn : idle) {
+                conn.closePhysical();
+                open--;
+            }
+            idle.clear();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,10 +1,18 @@
 package storage;
 
 import entities.*;
+import metrics.LibraryMetrics;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
-public class DatabaseStorage {
+public class DatabaseStorage implements StorageEngine {
 
     String DB_HOST = System.getenv("DB_HOST");
     String DB_PORT = System.getenv("DB_PORT");
@@ -12,8 +20,59 @@ public class DatabaseStorage {
     String DB_USER = System.getenv("DB_USER");
     String DB_PASSWORD = System.getenv("DB_PASSWORD");
 
-    String DB_URL = "jdbc:mysql://" + DB_HOST + ":" + DB_PORT + "/" + DB_NAME +
-            "?useSSL=false&allowPublicKeyRetrieval=true&serverTimezone=UTC";
+    // Rows per executeBatch; with rewriteBatchedStatements the driver sends each batch as multi-row INSERTs
+    int DB_BATCH_SIZE = envInt("DB_BATCH_SIZE", 1000);
+    boolean DB_REWRITE_BATCHES = !"false".equalsIgnoreCase(System.getenv("DB_REWRITE_BATCHES"));
+
+    // Connection pool: size, how long a connection may sit idle before it is re-validated,
+    // how long a caller waits for a free one, and prepared statements cached per connection
+    int DB_POOL_SIZE = envInt("DB_POOL_SIZE", 4);
+    int DB_POOL_VALIDATE_MS = envInt("DB_POOL_VALIDATE_MS", 30_000);
+    int DB_POOL_TIMEOUT_MS = envInt("DB_POOL_TIMEOUT_MS", 10_000);
+    int DB_STATEMENT_CACHE = envInt("DB_STATEMENT_CACHE", 32);
+
+    // Rows fetched per round trip while loading, and whether borrow history is only read
+    // per user when first needed instead of all at startup
+    int DB_FETCH_SIZE = envInt("DB_FETCH_SIZE", 1000);
+    boolean DB_LAZY_HISTORY = !"false".equalsIgnoreCase(System.getenv("DB_LAZY_HISTORY"));
+
+    // Tables are loaded concurrently by up to DB_LOAD_THREADS workers; DB_LOAD_PARTITIONS > 1
+    // also splits each table into that many primary-key ranges, for very large tables
+    int DB_LOAD_THREADS = envInt("DB_LOAD_THREADS", Runtime.getRuntime().availableProcessors());
+    int DB_LOAD_PARTITIONS = envInt("DB_LOAD_PARTITIONS", 1);
+
+    // Write-behind: changes are saved by a background thread every DB_WRITE_BEHIND_MS, or as
+    // soon as DB_WRITE_BEHIND_BATCH distinct changes are pending, instead of only on exit
+    boolean DB_WRITE_BEHIND = "true".equalsIgnoreCase(System.getenv("DB_WRITE_BEHIND"));
+    int DB_WRITE_BEHIND_MS = envInt("DB_WRITE_BEHIND_MS", 1000);
+    int DB_WRITE_BEHIND_BATCH = envInt("DB_WRITE_BEHIND_BATCH", 500);
+
+    // Changes made since the last save are journaled here; "off" disables the journal
+    String JOURNAL_PATH = System.getenv().getOrDefault("JOURNAL_PATH", "library.journal");
+
+    // Binary image of the library written after saves for fast startup; "off" disables it
+    String SNAPSHOT_PATH = System.getenv().getOrDefault("SNAPSHOT_PATH", "library.snapshot");
+
+    // Database file for the embedded SQLite engine
+    String SQLITE_PATH = System.getenv().getOrDefault("SQLITE_PATH", "library.db");
+
+    private final SqlDialect dialect;
+    private final String DB_URL;
+
+    public DatabaseStorage() {
+        this(SqlDialect.MYSQL);
+    }
+
+    public DatabaseStorage(SqlDialect dialect) {
+        this.dialect = dialect;
+        this.DB_URL = switch (dialect) {
+            case MYSQL -> "jdbc:mysql://" + DB_HOST + ":" + DB_PORT + "/" + DB_NAME +
+                    "?useSSL=false&allowPublicKeyRetrieval=true&serverTimezone=UTC" +
+                    "&rewriteBatchedStatements=" + DB_REWRITE_BATCHES +
+                    "&useCursorFetch=true";
+            case SQLITE -> "jdbc:sqlite:" + SQLITE_PATH;
+        };
+    }
 //    String DB_HOST = "localhost";
 //    String DB_PORT = "3306";
 //    String DB_NAME = "library";
@@ -24,61 +83,138 @@ public class DatabaseStorage {
 //            "?useSSL=false&allowPublicKeyRetrieval=true&serverTimezone=UTC";
 
 
-    private static final String CREATE_BOOKS = """
-        CREATE TABLE IF NOT EXISTS books (
-            id VARCHAR(255) PRIMARY KEY,
-            title TEXT,
-            author TEXT,
-            genre TEXT,
-            copies INT
-        );
-    """;
-
-    private static final String CREATE_USERS = """
-        CREATE TABLE IF NOT EXISTS users (
-            id VARCHAR(255) PRIMARY KEY,
-            name TEXT,
-            role TEXT
-        );
-    """;
-
-    private static final String CREATE_BORROWED = """
-        CREATE TABLE IF NOT EXISTS borrowed (
-            userId VARCHAR(255),
-            bookId VARCHAR(255),
-            PRIMARY KEY (userId, bookId),
-            FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE,
-            FOREIGN KEY (bookId) REFERENCES books(id) ON DELETE CASCADE
-        );
-    """;
-
-    private static final String CREATE_HISTORY = """
-        CREATE TABLE IF NOT EXISTS history (
-            userId VARCHAR(255),
-            bookId VARCHAR(255),
-            PRIMARY KEY (userId, bookId),
-            FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE,
-            FOREIGN KEY (bookId) REFERENCES books(id) ON DELETE CASCADE
-        );
-    """;
-
-    public void saveData(LibrarySystem system){
-
-        try (Connection conn = connect()) {
-            clearTables(conn);
-
-            saveBooks(conn, system);
-            saveUsers(conn, system);
-            saveBorrowedAndHistory(conn, system);
-
-            System.out.println("Data saved to database.");
+    @Override
+    public synchronized boolean saveData(LibrarySystem system){
+
+        // Only what changed since the last save is written
+        ChangeTracker.Changes changes = system.getChanges().drain();
+        if (changes.isEmpty()) {
+            System.out.println("No changes to save.");
+            return true;
+        }
+
+        long start = System.nanoTime();
+        long generation;
+        try {
+            generation = persist(system, changes);
+            System.out.println("Data saved to database (" + changes.size() + " changes).");
         } catch (Exception e) {
             System.out.println("Failed to save data:");
             e.printStackTrace();
+            return false;
         }
+
+        writeSnapshot(system, generation);
+        LibraryMetrics.getInstance().latency("saveData").recordSince(start);
+        return true;
     }
 
-    public void loadData(LibrarySystem system) throws ClassNotFoundException {
+    // Write-behind flush: same as saveData but quiet, and without a snapshot since the
+    // library keeps changing while it runs
+    private synchronized ChangeTracker.Changes flushChanges(LibrarySystem system) throws Exception {
+        ChangeTracker.Changes changes = system.getChanges().drain();
+        if (!changes.isEmpty()) persist(system, changes);
+        return changes;
+    }
+
+    // Writes a drained change set in one transaction and returns the new generation.
+    // On failure nothing was committed, so the changes go back to the tracker for the next save.
+    private long persist(LibrarySystem system, ChangeTracker.Changes changes) throws Exception {
+        long start = System.nanoTime();
+        long generation;
+        try (PooledConnection conn = connect()) {
+            // The whole change set commits or none of it does
+            conn.connection().setAutoCommit(false);
+            try {
+                deleteRemoved(conn, changes);
+
+                saveBooks(conn, system, changes);
+                saveUsers(conn, system, changes);
+                saveBorrowedAndHistory(conn, system, changes);
+                generation = nextGeneration(conn);
+
+                conn.connection().commit();
+            } catch (Exception e) {
+                conn.connection().rollback();
+                throw e;
+            }
+        } catch (Exception e) {
+            system.getChanges().restore(changes);
+            throw e;
+        }
+
+        // The database now has everything the journal recorded up to the drain
+        if (journal != null && changes.journalMark() >= 0) {
+            try {
+                journal.compact(changes.journalMark());
+            } catch (IOException e) {
+                System.out.println("Failed to compact journal: " + e.getMessage());
+            }
+        }
+        LibraryMetrics.getInstance().latency("saveData.persist").recordSince(start);
+        return generation;
+    }
+
+    private boolean snapshotsEnabled() {
+        return !SNAPSHOT_PATH.isBlank() && !SNAPSHOT_PATH.equalsIgnoreCase("off");
+    }
+
+    // Only a quiet system matches the database exactly: skip the snapshot if changes are
+    // pending, and throw it away if any arrived while it was being written (saves are
+    // synchronized, so nothing drains them in between)
+    private void writeSnapshot(LibrarySystem system, long generation) {
+        if (!snapshotsEnabled() || system.getChanges().hasChanges()) return;
+
+        Path path = Path.of(SNAPSHOT_PATH);
+        long start = System.nanoTime();
+        try {
+            Snapshot.write(path, system, generation);
+            if (system.getChanges().hasChanges()) Files.deleteIfExists(path);
+            LibraryMetrics.getInstance().latency("saveData.snapshot").recordSince(start);
+        } catch (IOException e) {
+            System.out.println("Failed to write snapshot: " + e.getMessage());
+        }
+    }
+
+    private boolean loadSnapshot(LibrarySystem system, long generation) {
+        if (!snapshotsEnabled()) return false;
+        try {
+            if (!Snapshot.read(Path.of(SNAPSHOT_PATH), system, generation, !lazyHistory())) return false;
+            // history the snapshot didn't have is read from the database on demand
+            system.setHistoryLoader(storedHistory);
+            System.out.println("Data loaded from snapshot (generation " + generation + ").");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable snapshot: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private long readGeneration(PooledConnection conn) throws SQLException {
+        PreparedStatement ps = conn.prepare("SELECT value FROM library_meta WHERE name = 'generation'");
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private long nextGeneration(PooledConnection conn) throws SQLException {
+        conn.prepare("UPDATE library_meta SET value = value + 1 WHERE name = 'generation'").executeUpdate();
+        return readGeneration(conn);
+    }
+
+    private static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + name + "=" + value);
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public void loadData(LibrarySystem system) {
 //        System.out.println("DB_HOST=" + DB_HOST);
 //        System.out.println("DB_PORT=" + DB_PORT);
 //        System.out.println("DB_NAME=" + DB_NAME);
@@ -87,145 +223,253 @@ public class DatabaseStorage {
 //        System.out.println("DB_URL=" + DB_URL);
 //        System.out.println(Class.forName("com.mysql.cj.jdbc.Driver"));
 
-        try (Connection conn = connect()) {
-            createTables(conn);
-            loadBooks(conn, system);
-            loadUsers(conn, system);
-            loadBorrowedAndHistory(conn, system);
+        LibraryMetrics metrics = LibraryMetrics.getInstance();
+        long loadStart = System.nanoTime();
 
-            System.out.println("Data loaded from database.");
-        } catch (Exception e) {
-            System.out.println("Failed to load data:");
-            e.printStackTrace();
+        // One parallel build of the search indexes instead of an update per loaded book
+        system.deferIndexes();
+        try {
+            try {
+                long generation;
+                long phase = System.nanoTime();
+                try (PooledConnection conn = connect()) {
+                    Migrations.migrate(conn, dialect);
+                    generation = readGeneration(conn);
+                }
+                metrics.latency("loadData.migrate").recordSince(phase);
+
+                phase = System.nanoTime();
+                if (loadSnapshot(system, generation)) {
+                    metrics.latency("loadData.snapshot").recordSince(phase);
+                } else {
+                    long start = System.currentTimeMillis();
+                    phase = System.nanoTime();
+                    new LoadPipeline(this::connect, DB_FETCH_SIZE, loadThreads(), DB_LOAD_PARTITIONS, lazyHistory())
+                            .load(system);
+                    if (lazyHistory()) system.setHistoryLoader(storedHistory);
+                    metrics.latency("loadData.database").recordSince(phase);
+                    System.out.println("Data loaded from database in " + (System.currentTimeMillis() - start) + " ms.");
+                }
+
+                // What was just loaded is already in the database
+                system.getChanges().clear();
+            } catch (Exception e) {
+                System.out.println("Failed to load data:");
+                e.printStackTrace();
+                return;
+            }
+
+            long phase = System.nanoTime();
+            recoverJournal(system);
+            metrics.latency("loadData.journal").recordSince(phase);
+        } finally {
+            long phase = System.nanoTime();
+            system.rebuildIndexes();
+            metrics.latency("loadData.indexes").recordSince(phase);
+        }
+        metrics.latency("loadData").recordSince(loadStart);
+        // re-adding what was saved isn't activity
+        metrics.resetCounters();
+
+        if (DB_WRITE_BEHIND) {
+            writeBehind = new WriteBehind(system.getChanges(), () -> flushChanges(system),
+                    DB_WRITE_BEHIND_MS, DB_WRITE_BEHIND_BATCH);
+            writeBehind.start();
+            LibraryMetrics.getInstance().addSource("writeBehind", writeBehind::stats);
         }
     }
 
-    private Connection connect() throws SQLException, ClassNotFoundException {
-        Class.forName("com.mysql.cj.jdbc.Driver");
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+    // Write-behind keeps database reads off the borrow path too, so history is loaded up front
+    private boolean lazyHistory() {
+        return DB_LAZY_HISTORY && !DB_WRITE_BEHIND;
     }
 
-    private void createTables(Connection conn) throws SQLException {
-        try (Statement stmt = conn.createStatement()) {
-            stmt.execute(CREATE_BOOKS);
-            stmt.execute(CREATE_USERS);
-            stmt.execute(CREATE_BORROWED);
-            stmt.execute(CREATE_HISTORY);
+    // Replays what the last run changed after its final save (e.g. it crashed), folds it
+    // into the database, then journals every change from here on
+    private void recoverJournal(LibrarySystem system) {
+        if (JOURNAL_PATH.isBlank() || JOURNAL_PATH.equalsIgnoreCase("off")) return;
+
+        try {
+            journal = new Journal(Path.of(JOURNAL_PATH));
+            Journal.Replay replay = journal.replay(system);
+            if (replay.failed() > 0) {
+                // compacting drops the records, so what couldn't be applied is kept aside
+                Path kept = Path.of(JOURNAL_PATH + ".failed");
+                Files.copy(Path.of(JOURNAL_PATH), kept, StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Journal: " + replay.failed() + " changes could not be applied; the journal is kept as "
+                        + kept + ".");
+            }
+            if (replay.applied() > 0) {
+                System.out.println("Recovered " + replay.applied() + " journaled changes.");
+                if (saveData(system)) journal.compact(journal.position());
+            }
+            system.getChanges().attach(journal);
+        } catch (IOException e) {
+            System.out.println("Journal unavailable, changes are only saved on exit: " + e.getMessage());
+            if (journal != null) journal.close();
+            journal = null;
         }
     }
 
-    private void clearTables(Connection conn) throws SQLException {
-        try (Statement stat = conn.createStatement()) {
-            stat.execute("DELETE FROM borrowed;");
-            stat.execute("DELETE FROM history;");
-            stat.execute("DELETE FROM users;");
-            stat.execute("DELETE FROM books;");
+    private ConnectionPool pool;
+    private Journal journal;
+    private volatile WriteBehind writeBehind;
+
+    private synchronized ConnectionPool pool() throws ClassNotFoundException {
+        if (pool == null) {
+            Class.forName(dialect.driverClass());
+            pool = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD, DB_POOL_SIZE,
+                    DB_POOL_VALIDATE_MS, DB_POOL_TIMEOUT_MS, DB_STATEMENT_CACHE, dialect.connectionInit());
+            LibraryMetrics.getInstance().addSource("connectionPool", pool::stats);
         }
+        return pool;
     }
 
-    private void saveBooks(Connection conn, LibrarySystem system) throws SQLException {
-        String sql = "INSERT INTO books (id, title, author, genre, copies) VALUES (?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            for (Book b : system.getBooks()) {
-                ps.setString(1, b.getId());
-                ps.setString(2, b.getTitle());
-                ps.setString(3, b.getAuthor());
-                ps.setString(4, b.getGenre());
-                ps.setInt(5, b.getAvailableCopies());
-                ps.executeUpdate();
-            }
-        }
+    private PooledConnection connect() throws SQLException, ClassNotFoundException {
+        return pool().acquire();
     }
 
-    private void saveUsers(Connection conn, LibrarySystem system) throws SQLException {
-        String sql = "INSERT INTO users (id, name, role) VALUES (?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            for (User u : system.getUsers()) {
-                ps.setString(1, u.getId());
-                ps.setString(2, u.getName());
-                ps.setString(3, (u instanceof Admin) ? "admin" : "user");
-                ps.executeUpdate();
+    @Override
+    public void close() {
+        // Not under this lock: the final flush needs it
+        WriteBehind wb = writeBehind;
+        if (wb != null) {
+            wb.close();
+            LibraryMetrics.getInstance().removeSource("writeBehind");
+            System.out.println("Write-behind: " + wb.stats());
+        }
+
+        synchronized (this) {
+            if (journal != null) journal.close();
+            if (pool != null) {
+                LibraryMetrics.getInstance().removeSource("connectionPool");
+                System.out.println("Connection pool: " + pool.stats());
+                pool.close();
             }
         }
     }
 
-    private void saveBorrowedAndHistory(Connection conn, LibrarySystem system) throws SQLException {
-        String borrowSql = "INSERT INTO borrowed (userId, bookId) VALUES (?, ?)";
-        String historySql = "INSERT INTO history (userId, bookId) VALUES (?, ?)";
+    private void deleteRemoved(PooledConnection conn, ChangeTracker.Changes changes) throws SQLException {
+        // borrowed and history rows of deleted users and books go with them (ON DELETE CASCADE)
+        PreparedStatement userStmt = conn.prepare("DELETE FROM users WHERE id = ?");
+        BatchWriter users = new BatchWriter(userStmt, DB_BATCH_SIZE);
+        for (String id : changes.removedUsers()) {
+            userStmt.setString(1, id);
+            users.add();
+        }
+        users.flush();
 
-        try (
-                PreparedStatement borrowStmt = conn.prepareStatement(borrowSql);
-                PreparedStatement historyStmt = conn.prepareStatement(historySql)
-        ) {
-            for (User u : system.getUsers()) {
-                for (Book b : u.getBorrowedBooks()) {
-                    borrowStmt.setString(1, u.getId());
-                    borrowStmt.setString(2, b.getId());
-                    borrowStmt.executeUpdate();
-                }
-                for (Book b : u.getHistoryBooks()) {
-                    historyStmt.setString(1, u.getId());
-                    historyStmt.setString(2, b.getId());
-                    historyStmt.executeUpdate();
-                }
-            }
+        PreparedStatement bookStmt = conn.prepare("DELETE FROM books WHERE id = ?");
+        BatchWriter books = new BatchWriter(bookStmt, DB_BATCH_SIZE);
+        for (String id : changes.removedBooks()) {
+            bookStmt.setString(1, id);
+            books.add();
         }
+        books.flush();
     }
 
-    private void loadBooks(Connection conn, LibrarySystem system) throws Exception {
-        String query = "SELECT * FROM books";
-        try (
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(query)
-        ) {
-            while (rs.next()) {
-                Book b = new Book(
-                        rs.getString("id"),
-                        rs.getString("title"),
-                        rs.getString("author"),
-                        rs.getString("genre"),
-                        rs.getInt("copies")
-                );
-                system.addBook(b);
-            }
+    private void saveBooks(PooledConnection conn, LibrarySystem system, ChangeTracker.Changes changes) throws SQLException {
+        PreparedStatement ps = conn.prepare(dialect.upsertBook());
+        BatchWriter batch = new BatchWriter(ps, DB_BATCH_SIZE);
+        for (String id : changes.dirtyBooks()) {
+            Book b = system.findBookById(id);
+            if (b == null) continue;
+            ps.setString(1, b.getId());
+            ps.setString(2, b.getTitle());
+            ps.setString(3, b.getAuthor());
+            ps.setString(4, b.getGenre());
+            ps.setInt(5, b.getAvailableCopies());
+            batch.add();
         }
+        batch.flush();
     }
 
-    private void loadUsers(Connection conn, LibrarySystem system) throws SQLException {
-        String query = "SELECT * FROM users";
-        try (
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(query)
-        ) {
-            while (rs.next()) {
-                String id = rs.getString("id");
-                String name = rs.getString("name");
-                String role = rs.getString("role");
+    private void saveUsers(PooledConnection conn, LibrarySystem system, ChangeTracker.Changes changes) throws SQLException {
+        PreparedStatement ps = conn.prepare(dialect.upsertUser());
+        BatchWriter batch = new BatchWriter(ps, DB_BATCH_SIZE);
+        for (String id : changes.dirtyUsers()) {
+            User u = system.findUserById(id);
+            if (u == null) continue;
+            ps.setString(1, u.getId());
+            ps.setString(2, u.getName());
+            ps.setString(3, (u instanceof Admin) ? "admin" : "user");
+            batch.add();
+        }
+        batch.flush();
+    }
 
-                User u = role.equalsIgnoreCase("admin") ? new Admin(id, name) : new RegularUser(id, name);
-                system.addUser(u);
-            }
+    private void saveBorrowedAndHistory(PooledConnection conn, LibrarySystem system, ChangeTracker.Changes changes) throws SQLException {
+        saveEdges(conn, system, "borrowed", changes.borrowedRemoved(), changes.borrowedAdded());
+        saveEdges(conn, system, "history", changes.historyRemoved(), changes.historyAdded());
+    }
+
+    private void saveEdges(PooledConnection conn, LibrarySystem system, String table,
+                           Set<ChangeTracker.Edge> removed, Set<ChangeTracker.Edge> added) throws SQLException {
+        PreparedStatement deleteStmt = conn.prepare("DELETE FROM " + table + " WHERE userId = ? AND bookId = ?");
+        BatchWriter deletes = new BatchWriter(deleteStmt, DB_BATCH_SIZE);
+        for (ChangeTracker.Edge e : removed) {
+            deleteStmt.setString(1, e.userId());
+            deleteStmt.setString(2, e.bookId());
+            deletes.add();
         }
+        deletes.flush();
+
+        PreparedStatement insertStmt = conn.prepare(dialect.insertEdge(table));
+        BatchWriter inserts = new BatchWriter(insertStmt, DB_BATCH_SIZE);
+        for (ChangeTracker.Edge e : added) {
+            // edges of users or books removed after the change was recorded are gone already
+            if (!system.hasUser(e.userId()) || !system.hasBook(e.bookId())) continue;
+            insertStmt.setString(1, e.userId());
+            insertStmt.setString(2, e.bookId());
+            inserts.add();
+        }
+        inserts.flush();
+    }
+
+    // Each load worker holds a pooled connection, so never more workers than connections
+    private int loadThreads() {
+        return Math.max(1, Math.min(DB_LOAD_THREADS, DB_POOL_SIZE));
     }
 
-    private void loadBorrowedAndHistory(Connection conn, LibrarySystem system) throws SQLException {
-        try (
-                Statement borrowStmt = conn.createStatement();
-                Statement historyStmt = conn.createStatement();
-                ResultSet borrows = borrowStmt.executeQuery("SELECT * FROM borrowed");
-                ResultSet historys = historyStmt.executeQuery("SELECT * FROM history")
-        ) {
-            while (borrows.next()) {
-                User u = system.findUserById(borrows.getString("userId"));
-                Book b = system.findBookById(borrows.getString("bookId"));
-                if (u != null && b != null) u.addBorrowedBook(b);
+    // History left in the database by lazy loading: one user's the first time it is needed,
+    // or everyone's in a single ordered scan for an export
+    private final HistoryLoader storedHistory = new HistoryLoader() {
+        @Override
+        public List<String> loadHistory(String userId) throws Exception {
+            try (PooledConnection conn = connect()) {
+                PreparedStatement ps = conn.prepare("SELECT bookId FROM history WHERE userId = ?");
+                ps.setString(1, userId);
+                List<String> bookIds = new ArrayList<>();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) bookIds.add(rs.getString(1));
+                }
+                return bookIds;
             }
+        }
 
-            while (historys.next()) {
-                User u = system.findUserById(historys.getString("userId"));
-                Book b = system.findBookById(historys.getString("bookId"));
-                if (u != null && b != null) u.getHistoryBooks().add(b);
+        @Override
+        public void forEachHistory(Visitor visitor) throws Exception {
+            // the primary key already orders rows by userId, so each user's rows arrive together
+            try (PooledConnection conn = connect();
+                 PreparedStatement ps = conn.connection().prepareStatement(
+                         "SELECT userId, bookId FROM history ORDER BY userId",
+                         ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ps.setFetchSize(DB_FETCH_SIZE);
+                String userId = null;
+                List<String> bookIds = new ArrayList<>();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String next = rs.getString(1);
+                        if (!next.equals(userId)) {
+                            if (userId != null) visitor.visit(userId, bookIds);
+                            userId = next;
+                            bookIds = new ArrayList<>();
+                        }
+                        bookIds.add(rs.getString(2));
+                    }
+                }
+                if (userId != null) visitor.visit(userId, bookIds);
             }
         }
-    }
+    };
 }
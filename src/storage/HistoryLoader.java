@@ -0,0 +1,16 @@
+package storage;
+
+import java.util.List;
+
+// Fetches the ids of the books users have returned, for history that wasn't loaded at startup
+public interface HistoryLoader {
+    List<String> loadHistory(String userId) throws Exception;
+
+    // All stored history in one pass, handed over one user at a time
+    void forEachHistory(Visitor visitor) throws Exception;
+
+    @FunctionalInterface
+    interface Visitor {
+        void visit(String userId, List<String> bookIds) throws Exception;
+    }
+}
@@ -0,0 +1,22 @@
+package storage;
+
+// Keeps nothing: the library starts empty and changes are dropped on save.
+// Useful for benchmarks, tests and demos that shouldn't need a database.
+public class InMemoryStorage implements StorageEngine {
+
+    @Override
+    public void loadData(LibrarySystem system) {
+        system.getChanges().clear();
+        System.out.println("In-memory storage: starting with an empty library.");
+    }
+
+    @Override
+    public boolean saveData(LibrarySystem system) {
+        system.getChanges().drain();
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,429 @@
+package storage;
+
+import entities.Admin;
+import entities.Book;
+import entities.RegularUser;
+import entities.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Append-only log of every change since the last save, so a crash loses nothing.
+// Records describe resulting state (not commands), so replaying one twice is harmless.
+// Layout per record: [int payload length][int CRC32C of payload][payload].
+public class Journal implements AutoCloseable {
+
+    private static final byte BOOK_PUT = 1, BOOK_DEL = 2, USER_PUT = 3, USER_DEL = 4,
+            BORROW_ADD = 5, BORROW_DEL = 6, HISTORY_ADD = 7, HISTORY_DEL = 8;
+
+    private final Path path;
+    private FileChannel channel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+
+    // Records appended but not yet handed to the writer thread
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(8192);
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(scratch);
+    private final CRC32C crc = new CRC32C();
+
+    // Logical offsets: everything before durableOffset is fsynced; baseOffset is where the file starts
+    private long appendedOffset, durableOffset, baseOffset;
+    private boolean writing, compacting, closed;
+
+    // Why the last write or fsync failed, until one succeeds again. Records stay pending and
+    // are written again; meanwhile nothing past durableOffset is reported durable.
+    private IOException failure;
+    private static final long RETRY_NANOS = 1_000_000_000L;
+
+    private final Thread writer;
+
+    public Journal(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        appendedOffset = durableOffset = channel.size();
+
+        writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // ---- appending (called by ChangeTracker while it holds its own lock) ----
+
+    // Fields are read under the lock, so the last record for a book always carries its latest
+    // copy count even when copies are reserved concurrently, and an update racing with the
+    // book's deletion can't be logged after it (which would bring the book back on replay)
+    void bookPut(Book b) {
+        lock.lock();
+        try {
+            if (LibrarySystem.getInstance().findBookById(b.getId()) != b) return;
+            append(BOOK_PUT, b.getId(), b.getTitle(), b.getAuthor(), b.getGenre(),
+                    Integer.toString(b.getAvailableCopies()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void bookRemoved(String bookId) {
+        append(BOOK_DEL, bookId);
+    }
+
+    void userPut(User u) {
+        append(USER_PUT, u.getId(), u.getName(), (u instanceof Admin) ? "admin" : "user");
+    }
+
+    void userRemoved(String userId) {
+        append(USER_DEL, userId);
+    }
+
+    void borrowedAdded(String userId, String bookId) {
+        append(BORROW_ADD, userId, bookId);
+    }
+
+    void borrowedRemoved(String userId, String bookId) {
+        append(BORROW_DEL, userId, bookId);
+    }
+
+    void historyAdded(String userId, String bookId) {
+        append(HISTORY_ADD, userId, bookId);
+    }
+
+    void historyRemoved(String userId, String bookId) {
+        append(HISTORY_DEL, userId, bookId);
+    }
+
+    private void append(byte type, String... fields) {
+        lock.lock();
+        try {
+            if (closed) return;
+            scratch.reset();
+            payload.writeByte(type);
+            for (String field : fields) {
+                if (field == null) {
+                    payload.writeInt(-1);
+                } else {
+                    byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                    payload.writeInt(bytes.length);
+                    payload.write(bytes);
+                }
+            }
+            crc.reset();
+            crc.update(scratch.toByteArray());
+
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(scratch.size());
+            out.writeInt((int) crc.getValue());
+            scratch.writeTo(pending);
+
+            appendedOffset += 8 + scratch.size();
+            work.signal();
+        } catch (IOException e) {
+            // in-memory streams don't throw
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Offset just past the last appended record
+    long position() {
+        lock.lock();
+        try {
+            return appendedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until everything appended so far is on disk. Callers arriving while an fsync
+    // is in flight are all covered by the next one (group commit). Throws if the journal
+    // can't currently be written, since the records may then not be on disk.
+    public void sync() {
+        lock.lock();
+        try {
+            long target = appendedOffset;
+            while (durableOffset < target && !closed) {
+                if (failure != null) throw new UncheckedIOException("Journal write failed; changes are not durable", failure);
+                synced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            long target, fileOffset;
+
+            lock.lock();
+            try {
+                while (!closed && pending.size() == 0) work.awaitUninterruptibly();
+                if (pending.size() == 0) return;
+                batch = pending;
+                pending = new ByteArrayOutputStream(Math.max(8192, batch.size()));
+                target = appendedOffset;
+                fileOffset = durableOffset - baseOffset;
+                writing = true;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                // a failed attempt may have left part of the batch behind
+                if (channel.size() > fileOffset) channel.truncate(fileOffset);
+                channel.position(fileOffset);
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                writing = false;
+                if (error == null) {
+                    failure = null;
+                    durableOffset = target;
+                } else {
+                    if (failure == null) System.out.println("Journal write failed, retrying: " + error.getMessage());
+                    failure = error;
+                    // the batch goes back in front of whatever was appended meanwhile
+                    ByteArrayOutputStream retry = new ByteArrayOutputStream(batch.size() + pending.size() + 8192);
+                    batch.writeTo(retry);
+                    pending.writeTo(retry);
+                    pending = retry;
+                }
+                synced.signalAll();
+                if (error != null) {
+                    if (closed) return;
+                    work.awaitNanos(RETRY_NANOS);
+                }
+            } catch (IOException | InterruptedException e) {
+                // in-memory streams don't throw, and nothing interrupts the writer
+                throw new IllegalStateException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // ---- recovery and compaction ----
+
+    // How many intact records a replay applied, and how many of them failed to apply
+    public record Replay(int applied, int failed) {
+    }
+
+    // Applies every intact record to the system. A torn or corrupt tail (crash mid-write)
+    // ends the replay and is cut off; a record that fails to apply is counted and skipped.
+    public Replay replay(LibrarySystem system) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+            channel.read(data, 0);
+            data.flip();
+
+            int applied = 0, failed = 0;
+            while (data.remaining() >= 8) {
+                int start = data.position();
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    data.position(start);
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                data.get(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    data.position(start);
+                    break;
+                }
+
+                if (apply(system, ByteBuffer.wrap(record))) applied++;
+                else failed++;
+            }
+
+            if (data.position() < channel.size()) {
+                System.out.println("Journal: dropping " + (channel.size() - data.position()) + " bytes of torn tail.");
+                channel.truncate(data.position());
+                channel.force(true);
+                appendedOffset = durableOffset = baseOffset + data.position();
+            }
+            channel.position(channel.size());
+            return new Replay(applied, failed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean apply(LibrarySystem system, ByteBuffer record) {
+        byte type = record.get();
+        try {
+            switch (type) {
+                case BOOK_PUT -> {
+                    String id = readField(record);
+                    String title = readField(record), author = readField(record), genre = readField(record);
+                    int copies = Integer.parseInt(readField(record));
+                    Book existing = system.findBookById(id);
+                    if (existing == null) system.addBook(new Book(id, title, author, genre, copies));
+                    else system.editBook(existing, title, author, genre, copies);
+                }
+                case BOOK_DEL -> {
+                    String id = readField(record);
+                    if (system.hasBook(id)) system.removeBook(id);
+                }
+                case USER_PUT -> {
+                    String id = readField(record), name = readField(record), role = readField(record);
+                    User existing = system.findUserById(id);
+                    if (existing == null) {
+                        system.addUser("admin".equals(role) ? new Admin(id, name) : new RegularUser(id, name));
+                    } else if (name != null && !name.equals(existing.getName())) {
+                        existing.setName(name);
+                    }
+                }
+                case USER_DEL -> {
+                    String id = readField(record);
+                    if (system.hasUser(id)) system.removeUser(id);
+                }
+                default -> applyEdge(system, type, readField(record), readField(record));
+            }
+            return true;
+        } catch (Exception e) {
+            System.out.println("Journal: skipping record of type " + type + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void applyEdge(LibrarySystem system, byte type, String userId, String bookId) {
+        User u = system.findUserById(userId);
+        Book b = system.findBookById(bookId);
+        if (u == null || b == null) return;
+
+        switch (type) {
+            case BORROW_ADD -> {
+                if (!u.hasBorrowed(bookId)) u.addBorrowedBook(b);
+            }
+            case BORROW_DEL -> u.removeFromBorrowed(b);
+            case HISTORY_ADD -> {
+                if (!u.hasInHistory(bookId)) u.addHistoryBook(b);
+            }
+            case HISTORY_DEL -> u.removeFromHistory(b);
+            default -> throw new IllegalArgumentException("unknown record type " + type);
+        }
+    }
+
+    private static String readField(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Drops every record before mark once it is safely in the database; later records are kept.
+    // The kept tail is copied to a new file without the lock, while appends and syncs go on
+    // against the old one; only what they wrote meanwhile is copied under the lock, just
+    // before the new file replaces the old.
+    void compact(long mark) throws IOException {
+        long keepFrom, copyEnd;
+        lock.lock();
+        try {
+            while (compacting || writing || durableOffset < Math.min(mark, appendedOffset)) {
+                if (failure != null && !writing) throw new IOException("Journal write failed", failure);
+                synced.awaitUninterruptibly();
+            }
+            if (mark <= baseOffset) return;
+            compacting = true;
+            keepFrom = mark - baseOffset;
+            copyEnd = durableOffset - baseOffset;
+        } finally {
+            lock.unlock();
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        boolean replaced = false;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // the writer only ever writes (or cuts back to) past durableOffset, so this range
+            // stays as it is
+            copy(channel, keepFrom, copyEnd, out);
+            out.force(true);
+
+            lock.lock();
+            try {
+                while (writing) synced.awaitUninterruptibly();
+                long fileEnd = durableOffset - baseOffset;
+                if (fileEnd > copyEnd) {
+                    copy(channel, copyEnd, fileEnd, out);
+                    out.force(true);
+                }
+
+                channel.close();
+                try {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    replaced = true;
+                } finally {
+                    // the old file again if the move failed
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel.position(channel.size());
+                }
+                baseOffset = mark;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            lock.lock();
+            try {
+                compacting = false;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (!replaced) Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void copy(FileChannel in, long from, long to, FileChannel out) throws IOException {
+        long copied = 0;
+        while (from + copied < to) copied += in.transferTo(from + copied, to - from - copied, out);
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,25 +1,75 @@
 package storage;
 
-import entities.Admin;
 import entities.Book;
+import entities.BookColumns;
+import entities.BorrowResult;
 import entities.User;
+import metrics.LibraryMetrics;
+import services.FullTextIndex;
+import services.Page;
+import services.SearchService;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 public class LibrarySystem {
 
     private static final LibrarySystem INSTANCE = new LibrarySystem();
 
+    // Books, stored column by column with their indexes: lookups by id and the orders by
+    // title, genre and author for searching and paged browsing
+    private final BookCatalog catalog = new BookCatalog(new BookColumns.Owner() {
+        @Override
+        public void refile(Book book, Runnable edit) {
+            refileBook(book, edit);
+        }
+
+        @Override
+        public void changed(Book book) {
+            changes.bookChanged(book);
+        }
+    });
+
     // Fast lookUps
-    private final Map<String, Book> booksById = new HashMap<>();
-    private final Map<String, User> usersById = new HashMap<>();
+    private final Map<String, User> usersById = new ConcurrentHashMap<>();
+
+    // In insertion order, keyed by a sequence number that is also the cursor for paging
+    // through them; userSeq finds a user's key again on removal
+    private final ConcurrentSkipListMap<Long, User> users = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> userSeq = new ConcurrentHashMap<>();
+    private final AtomicLong nextUserSeq = new AtomicLong();
+
+    // Reverse index from book id to the users holding it and the users who returned it.
+    // Only history that is in memory is indexed; rows still in storage go with the book's
+    // row (ON DELETE CASCADE). Kept up to date by User's edge methods.
+    private final Map<String, Set<User>> holdersByBook = new ConcurrentHashMap<>();
+    private final Map<String, Set<User>> pastBorrowersByBook = new ConcurrentHashMap<>();
 
-    // Unique Genres
-    private final Set<String> genres = new HashSet<>();
+    // Users by name: exact, case-insensitive and prefix lookups
+    private final SearchService<User> userSearch = new SearchService<>();
 
-    // For generic operations
-    private final List<Book> books = new ArrayList<>();
-    private final List<User> users = new ArrayList<>();
+    // Ranked search over the words of each book's title, author and genre. While a bulk
+    // load defers it, books are only indexed by the rebuild that follows.
+    private final FullTextIndex<Book> bookText = new FullTextIndex<>(List.of(
+            new FullTextIndex.Field<>(Book::getTitle, 3),
+            new FullTextIndex.Field<>(Book::getAuthor, 2),
+            new FullTextIndex.Field<>(Book::getGenre, 1)));
+    private volatile boolean indexesDeferred = false;
+
+    // Per-book and per-user locks. Whoever needs both takes the user's first.
+    private final LockStripes bookLocks = new LockStripes(Runtime.getRuntime().availableProcessors() * 16);
+    private final LockStripes userLocks = new LockStripes(Runtime.getRuntime().availableProcessors() * 16);
+
+    // What needs to be written on the next save
+    private final ChangeTracker changes = new ChangeTracker();
+
+    // Where users with deferred history get it from
+    private volatile HistoryLoader historyLoader;
 
     // Singleton
     private LibrarySystem() {}
@@ -28,129 +78,392 @@ public class LibrarySystem {
         return INSTANCE;
     }
 
-    public Map<String, Book> getBooksById() {
-        return booksById;
-    }
-
     public Map<String, User> getUsersById() {
         return usersById;
     }
 
+    // Genres of the books in the library, in the order they first appeared
     public Set<String> getGenres() {
-        return genres;
+        return Collections.unmodifiableSet(new LinkedHashSet<>(catalog.genres()));
     }
 
+    // Copies, safe to iterate while other threads add and remove
     public List<Book> getBooks() {
-        return books;
+        return catalog.books();
+    }
+
+    // All books without copying them, e.g. for an export; books added or removed meanwhile
+    // may or may not be seen
+    public Iterable<Book> iterateBooks() {
+        return catalog.iterate();
     }
 
     public List<User> getUsers() {
-        return users;
+        return new ArrayList<>(users.values());
     }
 
-    public void viewBooks() {
+    // Users in the order they were added, a page at a time. The cursor is the sequence
+    // number of the last user shown, so it stays valid while users are added and removed.
+    public Page<User> browseUsers(String after, int limit) {
+        NavigableMap<Long, User> range = after == null ? users : users.tailMap(Long.parseLong(after), false);
+        List<User> items = new ArrayList<>(Math.min(Math.max(limit, 0), 64));
+        long last = -1;
+        for (Map.Entry<Long, User> entry : range.entrySet()) {
+            // one more user means there is a next page
+            if (items.size() >= limit) return new Page<>(items, String.valueOf(last));
+            items.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new Page<>(items, null);
+    }
 
-        System.out.println("\n📚 --- Book Catalog ---");
-        System.out.printf("%-10s | %-25s | %-20s | %-15s | %-6s\n",
-                "ID", "Title", "Author", "Genre", "Copies");
-        System.out.println("-------------------------------------------------------------------------------");
+    public void indexBorrowed(User user, Book book) {
+        addToIndex(holdersByBook, book.getId(), user);
+    }
 
-        for (Book b : books) {
-            System.out.printf("%-10s | %-25s | %-20s | %-15s | %-6d\n",
-                    b.getId(), b.getTitle(), b.getAuthor(), b.getGenre(), b.getAvailableCopies());
-        }
+    public void unindexBorrowed(User user, Book book) {
+        removeFromIndex(holdersByBook, book.getId(), user);
+    }
+
+    public void indexHistory(User user, Book book) {
+        addToIndex(pastBorrowersByBook, book.getId(), user);
+    }
+
+    public void unindexHistory(User user, Book book) {
+        removeFromIndex(pastBorrowersByBook, book.getId(), user);
+    }
+
+    // compute keeps adding and dropping an emptied set atomic per book
+    private static void addToIndex(Map<String, Set<User>> index, String bookId, User user) {
+        index.compute(bookId, (id, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(user);
+            return set;
+        });
     }
 
-    public void viewUsers()
-    {
-        System.out.println("\n📚 --- Users Menu ---");
-        System.out.printf("%-13s | %-22s | %-5s\n", "ID", "Name", "Role");
-        System.out.println("------------------------------------------------");
+    private static void removeFromIndex(Map<String, Set<User>> index, String bookId, User user) {
+        index.computeIfPresent(bookId, (id, set) -> {
+            set.remove(user);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    // Books out on loan right now; counts the holder index, so meant for occasional reads
+    public long loanCount() {
+        long loans = 0;
+        for (Set<User> holders : holdersByBook.values()) loans += holders.size();
+        return loans;
+    }
+
+    // Users currently holding the book
+    public List<User> getHolders(String bookId) {
+        Set<User> holders = holdersByBook.get(bookId);
+        return holders == null ? List.of() : new ArrayList<>(holders);
+    }
+
+    // Users who borrowed and returned the book, among those whose history is loaded
+    public List<User> getPastBorrowers(String bookId) {
+        Set<User> past = pastBorrowersByBook.get(bookId);
+        return past == null ? List.of() : new ArrayList<>(past);
+    }
+
+    // Exact, case-sensitive title match
+    public Book findBookByTitle(String title) {
+        return catalog.findByTitle(title);
+    }
+
+    // Titles matching ignoring case, accents and extra spaces
+    public List<Book> findBooksByTitle(String title) {
+        return catalog.findByTitleIgnoreCase(title);
+    }
+
+    // Up to limit books whose title starts with the prefix (same matching), by title
+    public List<Book> findBooksByTitlePrefix(String prefix, int limit) {
+        return catalog.findByTitlePrefix(prefix, limit);
+    }
+
+    public SearchService<User> getUserSearch() {
+        return userSearch;
+    }
+
+    // The k books best matching the query words, best first
+    public List<FullTextIndex.Hit<Book>> searchBooks(String query, int k) {
+        return bookText.search(query, k);
+    }
+
+    // Books in the order they were added, a page at a time
+    public Page<Book> browseBooks(String after, int limit) {
+        return catalog.pageBySlot(after, limit);
+    }
+
+    // Paged browsing: up to limit books from just after the cursor (null for the first page),
+    // sorted by title. Genres and authors match ignoring case, accents and extra spaces.
+    public Page<Book> browseByTitle(String after, int limit, boolean descending, Predicate<? super Book> filter) {
+        return catalog.pageByTitle(after, limit, descending, filter);
+    }
+
+    public Page<Book> browseByGenre(String genre, String after, int limit, boolean descending,
+                                    Predicate<? super Book> filter) {
+        return catalog.pageByGenre(genre, after, limit, descending, filter);
+    }
 
-        for (User user : users) {
-            String role = (user instanceof Admin) ? "Admin" : "User";
-            System.out.printf("👤 ID: %-10s | Name: %-20s | Role: %-5s\n", user.getId(), user.getName(), role);
+    public Page<Book> browseByAuthor(String author, String after, int limit, boolean descending,
+                                     Predicate<? super Book> filter) {
+        return catalog.pageByAuthor(author, after, limit, descending, filter);
+    }
+
+
+    // For bulk loads: books are only indexed by the rebuildIndexes() that follows
+    public void deferIndexes() {
+        indexesDeferred = true;
+        catalog.deferIndexes();
+    }
+
+    // Indexes the whole catalog at once (in parallel) and resumes incremental updates
+    public void rebuildIndexes() {
+        indexesDeferred = false;
+        catalog.rebuildIndexes();
+        bookText.rebuild(getBooks());
+    }
+
+    // Called by User.setName
+    public void userRenamed(User user) {
+        userSearch.update(user);
+    }
+
+    public ReentrantLock bookLock(String bookId) {
+        return bookLocks.of(bookId);
+    }
+
+    public ReentrantLock userLock(String userId) {
+        return userLocks.of(userId);
+    }
+
+    public ChangeTracker getChanges() {
+        return changes;
+    }
+
+    public void setHistoryLoader(HistoryLoader historyLoader) {
+        this.historyLoader = historyLoader;
+    }
+
+    // Books of a user's stored history; ids of books deleted since are skipped
+    public List<Book> loadHistory(String userId) {
+        HistoryLoader loader = historyLoader;
+        if (loader == null) return List.of();
+
+        try {
+            List<Book> history = new ArrayList<>();
+            for (String bookId : loader.loadHistory(userId)) {
+                Book book = catalog.get(bookId);
+                if (book != null) history.add(book);
+            }
+            return history;
+        } catch (Exception e) {
+            throw new IllegalStateException("Couldn't load the borrow history of " + userId + ": " + e.getMessage(), e);
         }
     }
 
-    public int usersSize() { return users.size();}
-    public int booksSize() { return books.size();}
+    // Every user's stored history in one pass, as loadHistory would return it for each user
+    // with any. Users removed since are skipped. Without storage there is none to read.
+    public void forEachStoredHistory(StoredHistoryVisitor visitor) throws IOException {
+        HistoryLoader loader = historyLoader;
+        if (loader == null) return;
+
+        try {
+            loader.forEachHistory((userId, bookIds) -> {
+                User user = usersById.get(userId);
+                if (user == null) return;
+                List<Book> history = new ArrayList<>(bookIds.size());
+                for (String bookId : bookIds) {
+                    Book book = catalog.get(bookId);
+                    if (book != null) history.add(book);
+                }
+                visitor.visit(user, history);
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Couldn't read the stored borrow history: " + e.getMessage(), e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface StoredHistoryVisitor {
+        void visit(User user, List<Book> history) throws IOException;
+    }
+
+    public int usersSize() { return usersById.size();}
+    public int booksSize() { return catalog.size();}
 
 
     public Book findBookById(String id) {
-        return booksById.get(id);
+        return catalog.get(id);
     }
 
     public User findUserById(String id) {
         return usersById.get(id);
     }
 
-    // For books
-    public void addBook(Book book) {
-        if (!booksById.containsKey(book.getId())) {
-            booksById.put(book.getId(), book);
-            books.add(book);
-            genres.add(book.getGenre());
-        }
+    // For books; false if a book with that id exists
+    public boolean addBook(Book book) {
+        boolean added = insertBook(book);
+        if (added) changes.commit();
         else System.out.println("Book exists.");
+        return added;
     }
 
-    public void removeBook(String bookId) {
+    // Adds many books with one journal sync; returns the ones whose id already existed
+    public List<Book> addBooks(Collection<Book> batch) {
+        List<Book> duplicates = new ArrayList<>();
+        for (Book book : batch) {
+            if (!insertBook(book)) duplicates.add(book);
+        }
+        changes.commit();
+        return duplicates;
+    }
 
-        if (booksById.containsKey(bookId)) {
-            Book book = booksById.get(bookId);
+    private boolean insertBook(Book book) {
+        ReentrantLock lock = bookLock(book.getId());
+        lock.lock();
+        try {
+            if (!catalog.add(book)) return false;
+            if (!indexesDeferred) bookText.add(book);
+            changes.bookChanged(book);
+        } finally {
+            lock.unlock();
+        }
+        LibraryMetrics.getInstance().bookAdded();
+        return true;
+    }
 
-            booksById.remove(book.getId());
-            books.remove(book);
-            if(books.stream().noneMatch(item -> item.getGenre().equals(book.getGenre())))
-            {
-                genres.remove(book.getGenre());
-            }
+    // Applies an admin edit; null fields and -1 copies keep the current value
+    public void editBook(Book book, String title, String author, String genre, int copies) throws Exception {
+        ReentrantLock lock = bookLock(book.getId());
+        lock.lock();
+        try {
+            if (title != null && !title.equals(book.getTitle())) book.setTitle(title);
+            if (author != null && !author.equals(book.getAuthor())) book.setAuthor(author);
+            if (genre != null && !genre.equals(book.getGenre())) book.setGenre(genre);
+            if (copies != -1) book.setAvailableCopies(copies);
+        } finally {
+            lock.unlock();
+        }
+        changes.commit();
+    }
 
-            // remove book from regular users and from history
-            users.forEach(user -> user.removeBook(book));
-            usersById.values().forEach(user -> user.removeBook(book));
+    // For Book's setters: applies a change to its title, author or genre and files the book
+    // again in the catalog's orders and the full-text index
+    private void refileBook(Book book, Runnable write) {
+        ReentrantLock lock = bookLock(book.getId());
+        lock.lock();
+        try {
+            catalog.refile(book, write);
+            if (!indexesDeferred && catalog.get(book.getId()) == book) bookText.update(book);
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    public void removeBook(String bookId) {
+        Book book;
+        ReentrantLock lock = bookLock(bookId);
+        lock.lock();
+        try {
+            // once it is out of the catalog no new borrow can take it
+            book = catalog.remove(bookId);
+            if (book == null) {
+                System.out.println("Book doesn't exists.");
+                return;
+            }
+            bookText.remove(book);
+            changes.bookRemoved(bookId);
+        } finally {
+            lock.unlock();
         }
-        else System.out.println("Book doesn't exists.");
+
+        // remove book from the users who have it borrowed or in their history (each under its own lock).
+        // A borrow racing with this indexes its user before re-checking that the book still exists,
+        // so it is either listed here or backs out by itself.
+        Set<User> affected = new HashSet<>(getHolders(bookId));
+        affected.addAll(getPastBorrowers(bookId));
+        affected.forEach(user -> user.removeBook(book));
+        changes.commit();
+        LibraryMetrics.getInstance().bookRemoved();
     }
 
     public boolean hasBook(String bookId) {
-        return booksById.containsKey(bookId);
+        return catalog.get(bookId) != null;
     }
 
     // For Users
     public void addUser(User user) {
-        if (!usersById.containsKey(user.getId())) {
-            usersById.put(user.getId(), user);
-            users.add(user);
+        ReentrantLock lock = userLock(user.getId());
+        lock.lock();
+        try {
+            if (usersById.putIfAbsent(user.getId(), user) != null) {
+                System.out.println("User exists.");
+                return;
+            }
+            long seq = nextUserSeq.getAndIncrement();
+            userSeq.put(user.getId(), seq);
+            users.put(seq, user);
+            userSearch.add(user);
+            changes.userChanged(user);
+        } finally {
+            lock.unlock();
         }
-        else System.out.println("User exists.");
+        changes.commit();
+        LibraryMetrics.getInstance().userAdded();
     }
 
     public void removeUser(String userId) {
-
-        if (usersById.containsKey(userId)) {
-            User user = usersById.get(userId);
-            usersById.remove(user.getId());
-            users.remove(user);
+        ReentrantLock lock = userLock(userId);
+        lock.lock();
+        try {
+            User user = usersById.remove(userId);
+            if (user == null) {
+                System.out.println("User doesn't exists.");
+                return;
+            }
+            Long seq = userSeq.remove(userId);
+            if (seq != null) users.remove(seq);
+            userSearch.remove(user);
 
             // return the books of that user
-            List<Book> borrowed = new ArrayList<>(user.getBorrowedBooks());
-            for (Book book : borrowed) {
-                try {
-                    user.returnBook(book.getID());
-                } catch (Exception e) {
-                    System.out.println("Failed to return book " + book.getID() + ": " + e.getMessage());
+            for (Book book : user.getBorrowedBooks()) {
+                BorrowResult result = user.tryReturn(book.getID());
+                if (result != BorrowResult.OK) {
+                    System.out.println("Failed to return book " + book.getID() + ": " + result.getMessage());
                 }
             }
-
+            for (Book book : user.getLoadedHistoryBooks()) unindexHistory(user, book);
+            changes.userRemoved(userId);
+        } finally {
+            lock.unlock();
         }
-        else System.out.println("User doesn't exists.");
+        changes.commit();
+        LibraryMetrics.getInstance().userRemoved();
     }
 
     public boolean hasUser(String userId) {
         return usersById.containsKey(userId);
     }
 
+    // Empties the library, e.g. between benchmark runs. Not for use while other threads
+    // work with it.
+    public void clear() {
+        users.clear();
+        userSeq.clear();
+        catalog.clear();
+        usersById.clear();
+        holdersByBook.clear();
+        pastBorrowersByBook.clear();
+        userSearch.clear();
+        bookText.rebuild(List.of());
+        historyLoader = null;
+        changes.clear();
+    }
+
 }
@@ -0,0 +1,184 @@
+package storage;
+
+import entities.Admin;
+import entities.Book;
+import entities.RegularUser;
+import entities.User;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loads the tables concurrently, each on its own pooled connection, optionally split into
+// primary-key ranges. The ranges of every table are worked out first, on one connection,
+// so no worker is waiting for it. Each worker streams its rows straight into LibrarySystem
+// a batch at a time; borrowed/history edges are fetched only once books and users are in.
+final class LoadPipeline {
+
+    interface ConnectionSource {
+        PooledConnection connect() throws Exception;
+    }
+
+    private interface RowDecoder<T> {
+        T decode(ResultSet rs) throws Exception;
+    }
+
+    private interface BatchSink<T> {
+        void accept(List<T> batch) throws Exception;
+    }
+
+    // [lower, upper) key range; null means unbounded
+    private record Range(String lower, String upper) {}
+
+    private final ConnectionSource source;
+    private final int fetchSize, threads, partitions;
+    private final boolean lazyHistory;
+
+    LoadPipeline(ConnectionSource source, int fetchSize, int threads, int partitions, boolean lazyHistory) {
+        this.source = source;
+        this.fetchSize = Math.max(1, fetchSize);
+        this.threads = Math.max(1, threads);
+        this.partitions = Math.max(1, partitions);
+        this.lazyHistory = lazyHistory;
+    }
+
+    void load(LibrarySystem system) throws Exception {
+        List<Range> bookRanges, userRanges, borrowedRanges, historyRanges;
+        try (PooledConnection conn = source.connect()) {
+            bookRanges = ranges(conn, "books", "id");
+            userRanges = ranges(conn, "users", "id");
+            borrowedRanges = ranges(conn, "borrowed", "userId");
+            historyRanges = lazyHistory ? List.of() : ranges(conn, "history", "userId");
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "db-load-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            List<Future<?>> parts = new ArrayList<>();
+            submit(workers, parts, bookRanges, "id", "SELECT id, title, author, genre, copies FROM books",
+                    rs -> new Book(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getInt(5)),
+                    system::addBooks);
+            submit(workers, parts, userRanges, "id", "SELECT id, name, role FROM users", this::decodeUser,
+                    batch -> batch.forEach(system::addUser));
+            await(parts);
+
+            RowDecoder<ChangeTracker.Edge> edge = rs -> new ChangeTracker.Edge(rs.getString(1), rs.getString(2));
+            submit(workers, parts, borrowedRanges, "userId", "SELECT userId, bookId FROM borrowed", edge,
+                    batch -> batch.forEach(e -> {
+                        User u = system.findUserById(e.userId());
+                        Book b = system.findBookById(e.bookId());
+                        if (u != null && b != null) u.addBorrowedBook(b);
+                    }));
+            submit(workers, parts, historyRanges, "userId", "SELECT userId, bookId FROM history", edge,
+                    batch -> batch.forEach(e -> {
+                        User u = system.findUserById(e.userId());
+                        Book b = system.findBookById(e.bookId());
+                        if (u != null && b != null) u.addHistoryBook(b);
+                    }));
+            await(parts);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private User decodeUser(ResultSet rs) throws SQLException {
+        String id = rs.getString(1);
+        String name = rs.getString(2);
+        String role = rs.getString(3);
+
+        User u = role.equalsIgnoreCase("admin") ? new Admin(id, name) : new RegularUser(id, name);
+        // history stays in the database until the user actually needs it
+        if (lazyHistory) u.deferHistoryLoading();
+        return u;
+    }
+
+    private <T> void submit(ExecutorService workers, List<Future<?>> parts, List<Range> ranges, String key,
+                            String select, RowDecoder<T> decoder, BatchSink<T> sink) {
+        for (Range range : ranges) {
+            parts.add(workers.submit(() -> {
+                fetch(select, key, range, decoder, sink);
+                return null;
+            }));
+        }
+    }
+
+    // Splits a table into roughly equal key ranges using the primary key index
+    private List<Range> ranges(PooledConnection conn, String table, String key) throws SQLException {
+        if (partitions == 1) return List.of(new Range(null, null));
+
+        String sql = "SELECT MIN(" + key + ") FROM (SELECT " + key + ", NTILE(?) OVER (ORDER BY " + key +
+                ") AS part FROM " + table + ") tiles GROUP BY part ORDER BY 1";
+        List<String> starts = new ArrayList<>();
+        PreparedStatement ps = conn.prepare(sql);
+        ps.setInt(1, partitions);
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) starts.add(rs.getString(1));
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        String lower = null;
+        for (int i = 1; i < starts.size(); i++) {
+            ranges.add(new Range(lower, starts.get(i)));
+            lower = starts.get(i);
+        }
+        ranges.add(new Range(lower, null));
+        return ranges;
+    }
+
+    // Hands the rows to the sink fetchSize at a time, so a worker never holds more than that
+    private <T> void fetch(String select, String key, Range range, RowDecoder<T> decoder, BatchSink<T> sink)
+            throws Exception {
+        StringBuilder sql = new StringBuilder(select);
+        if (range.lower() != null) sql.append(" WHERE ").append(key).append(" >= ?");
+        if (range.upper() != null) sql.append(range.lower() != null ? " AND " : " WHERE ").append(key).append(" < ?");
+
+        try (PooledConnection conn = source.connect();
+             PreparedStatement ps = conn.connection().prepareStatement(sql.toString(),
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // forward-only, read-only and fetched in chunks instead of buffered whole
+            ps.setFetchSize(fetchSize);
+            int param = 1;
+            if (range.lower() != null) ps.setString(param++, range.lower());
+            if (range.upper() != null) ps.setString(param, range.upper());
+
+            List<T> batch = new ArrayList<>(Math.min(fetchSize, 4096));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    batch.add(decoder.decode(rs));
+                    if (batch.size() >= fetchSize) {
+                        sink.accept(batch);
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) sink.accept(batch);
+        }
+    }
+
+    // Waits for every part, rethrowing the first failure
+    private static void await(List<Future<?>> parts) throws Exception {
+        try {
+            for (Future<?> part : parts) {
+                try {
+                    part.get();
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof Exception cause) ? cause : e;
+                }
+            }
+        } finally {
+            parts.clear();
+        }
+    }
+}
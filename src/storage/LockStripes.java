@@ -0,0 +1,23 @@
+package storage;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// A fixed set of locks picked by hash of a key: operations on different books (or users)
+// rarely share a lock, and the number of locks doesn't grow with the catalog
+public final class LockStripes {
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    public LockStripes(int stripes) {
+        int size = Integer.highestOneBit(Math.max(2, stripes) - 1) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) locks[i] = new ReentrantLock();
+        mask = size - 1;
+    }
+
+    public ReentrantLock of(String key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & mask];
+    }
+}
@@ -0,0 +1,184 @@
+package storage;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// Versioned schema changes. Each migration runs once, in order, and is recorded in
+// schema_version; a start with an up-to-date schema only checks schema_version.
+// New schema changes are appended to MIGRATIONS, never edited in place.
+final class Migrations {
+
+    private record Migration(int version, String description, List<String> mysql, List<String> sqlite) {
+        List<String> statements(SqlDialect dialect) {
+            return dialect == SqlDialect.SQLITE ? sqlite : mysql;
+        }
+    }
+
+    private static final String CREATE_BOOKS = """
+        CREATE TABLE IF NOT EXISTS books (
+            id VARCHAR(255) PRIMARY KEY,
+            title TEXT,
+            author TEXT,
+            genre TEXT,
+            copies INT
+        );
+    """;
+
+    private static final String CREATE_USERS = """
+        CREATE TABLE IF NOT EXISTS users (
+            id VARCHAR(255) PRIMARY KEY,
+            name TEXT,
+            role TEXT
+        );
+    """;
+
+    private static final String CREATE_BORROWED = """
+        CREATE TABLE IF NOT EXISTS borrowed (
+            userId VARCHAR(255),
+            bookId VARCHAR(255),
+            PRIMARY KEY (userId, bookId),
+            FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE,
+            FOREIGN KEY (bookId) REFERENCES books(id) ON DELETE CASCADE
+        );
+    """;
+
+    private static final String CREATE_HISTORY = """
+        CREATE TABLE IF NOT EXISTS history (
+            userId VARCHAR(255),
+            bookId VARCHAR(255),
+            PRIMARY KEY (userId, bookId),
+            FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE,
+            FOREIGN KEY (bookId) REFERENCES books(id) ON DELETE CASCADE
+        );
+    """;
+
+    // Bumped by every save; a snapshot is only used if it was written at the current generation
+    private static final String CREATE_META = """
+        CREATE TABLE IF NOT EXISTS library_meta (
+            name VARCHAR(64) PRIMARY KEY,
+            value BIGINT NOT NULL
+        );
+    """;
+
+    private static final String CREATE_SCHEMA_VERSION = """
+        CREATE TABLE IF NOT EXISTS schema_version (
+            version INT PRIMARY KEY,
+            description VARCHAR(255) NOT NULL,
+            appliedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+        )
+    """;
+
+    // SQLite can neither add keys to an existing table nor add a column with a
+    // CURRENT_TIMESTAMP default, so its edge tables are rebuilt. This also gives older
+    // library.db files, whose edge tables had no keys, their primary and foreign keys;
+    // duplicate and orphaned rows are dropped on the way.
+    private static List<String> rebuildEdgeTable(String table, String timestampColumn) {
+        return List.of(
+                "CREATE TABLE " + table + "_new (\n" +
+                "    userId VARCHAR(255) NOT NULL,\n" +
+                "    bookId VARCHAR(255) NOT NULL,\n" +
+                "    " + timestampColumn + " TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,\n" +
+                "    PRIMARY KEY (userId, bookId),\n" +
+                "    FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE,\n" +
+                "    FOREIGN KEY (bookId) REFERENCES books(id) ON DELETE CASCADE\n" +
+                ")",
+                "INSERT OR IGNORE INTO " + table + "_new (userId, bookId) SELECT userId, bookId FROM " + table +
+                        " WHERE userId IN (SELECT id FROM users) AND bookId IN (SELECT id FROM books)",
+                "DROP TABLE " + table,
+                "ALTER TABLE " + table + "_new RENAME TO " + table,
+                "CREATE INDEX idx_" + table + "_book ON " + table + " (bookId)");
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            // Databases created before migrations existed already have these; IF NOT EXISTS skips them
+            new Migration(1, "base tables",
+                    List.of(CREATE_BOOKS, CREATE_USERS, CREATE_BORROWED, CREATE_HISTORY, CREATE_META,
+                            "INSERT IGNORE INTO library_meta (name, value) VALUES ('generation', 0)"),
+                    List.of(CREATE_BOOKS, CREATE_USERS, CREATE_BORROWED, CREATE_HISTORY, CREATE_META,
+                            "INSERT OR IGNORE INTO library_meta (name, value) VALUES ('generation', 0)")),
+
+            // TEXT columns can only be indexed by prefix in MySQL
+            new Migration(2, "bounded and indexed book columns",
+                    List.of("ALTER TABLE books MODIFY title VARCHAR(255), MODIFY author VARCHAR(255), " +
+                                    "MODIFY genre VARCHAR(255)",
+                            "CREATE INDEX idx_books_title ON books (title)",
+                            "CREATE INDEX idx_books_author ON books (author)",
+                            "CREATE INDEX idx_books_genre ON books (genre)"),
+                    List.of("CREATE INDEX IF NOT EXISTS idx_books_title ON books (title)",
+                            "CREATE INDEX IF NOT EXISTS idx_books_author ON books (author)",
+                            "CREATE INDEX IF NOT EXISTS idx_books_genre ON books (genre)")),
+
+            // "Who holds this book" and cascaded deletes look edges up by bookId
+            new Migration(3, "bookId indexes and borrow timestamps",
+                    List.of("ALTER TABLE borrowed ADD COLUMN borrowedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP",
+                            "ALTER TABLE history ADD COLUMN returnedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP",
+                            "CREATE INDEX idx_borrowed_book ON borrowed (bookId)",
+                            "CREATE INDEX idx_history_book ON history (bookId)"),
+                    concat(rebuildEdgeTable("borrowed", "borrowedAt"), rebuildEdgeTable("history", "returnedAt")))
+    );
+
+    private Migrations() {}
+
+    // Brings the schema up to date; returns how many migrations were applied
+    static int migrate(PooledConnection conn, SqlDialect dialect) throws SQLException {
+        try (Statement stmt = conn.connection().createStatement()) {
+            stmt.execute(CREATE_SCHEMA_VERSION);
+        }
+
+        int current = currentVersion(conn);
+        int applied = 0;
+        for (Migration m : MIGRATIONS) {
+            if (m.version() <= current) continue;
+            apply(conn, dialect, m);
+            System.out.println("Applied schema migration " + m.version() + ": " + m.description() + ".");
+            applied++;
+        }
+        return applied;
+    }
+
+    private static int currentVersion(PooledConnection conn) throws SQLException {
+        PreparedStatement ps = conn.prepare("SELECT MAX(version) FROM schema_version");
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // SQLite runs a migration in one transaction. MySQL commits each DDL statement on its own,
+    // so a migration interrupted halfway is retried from the start and statements whose
+    // effect is already there are skipped.
+    private static void apply(PooledConnection conn, SqlDialect dialect, Migration m) throws SQLException {
+        conn.connection().setAutoCommit(false);
+        try (Statement stmt = conn.connection().createStatement()) {
+            for (String sql : m.statements(dialect)) {
+                try {
+                    stmt.execute(sql);
+                } catch (SQLException e) {
+                    if (!dialect.alreadyApplied(e)) throw e;
+                }
+            }
+
+            PreparedStatement record = conn.prepare("INSERT INTO schema_version (version, description) VALUES (?, ?)");
+            record.setInt(1, m.version());
+            record.setString(2, m.description());
+            record.executeUpdate();
+
+            conn.connection().commit();
+        } catch (SQLException e) {
+            conn.connection().rollback();
+            throw new SQLException("Schema migration " + m.version() + " (" + m.description() + ") failed: " +
+                    e.getMessage(), e);
+        } finally {
+            conn.connection().setAutoCommit(true);
+        }
+    }
+
+    private static List<String> concat(List<String> a, List<String> b) {
+        List<String> all = new ArrayList<>(a);
+        all.addAll(b);
+        return List.copyOf(all);
+    }
+}
@@ -0,0 +1,270 @@
+package storage;
+
+import entities.Admin;
+import entities.Book;
+import entities.RegularUser;
+import entities.User;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Binary image of the whole library, written after a save so the next start can skip the
+// table scans. It is only trusted when its generation matches the database's.
+//
+// Header: magic, format version, generation, payload length, CRC32C of the payload.
+// Payload sections, each prefixed with its record count:
+//   strings  - every distinct string once, as [int byte length][UTF-8 bytes]
+//   books    - [id][title][author][genre] string indexes + [copies]
+//   users    - [id][name] string indexes + [role byte]
+//   borrowed - [user index][book index] into the sections above
+//   history  - [complete flag] then the same as borrowed; incomplete when some users'
+//              history was never loaded, in which case it stays in the database
+final class Snapshot {
+
+    private static final long MAGIC = 0x4C49425F534E4150L; // "LIB_SNAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 8;
+
+    private static final byte ROLE_USER = 0, ROLE_ADMIN = 1;
+
+    private Snapshot() {}
+
+    static void write(Path path, LibrarySystem system, long generation) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+
+            CRC32C crc = new CRC32C();
+            CountingCrcStream body = new CountingCrcStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc);
+            DataOutputStream out = new DataOutputStream(body);
+            writePayload(out, system);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(VERSION).putLong(generation)
+                    .putLong(body.count).putLong(crc.getValue()).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writePayload(DataOutputStream out, LibrarySystem system) throws IOException {
+        List<Book> books = system.getBooks();
+        List<User> users = system.getUsers();
+
+        Map<String, Integer> stringIndex = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Book b : books) {
+            intern(b.getId(), stringIndex, strings);
+            intern(b.getTitle(), stringIndex, strings);
+            intern(b.getAuthor(), stringIndex, strings);
+            intern(b.getGenre(), stringIndex, strings);
+        }
+        for (User u : users) {
+            intern(u.getId(), stringIndex, strings);
+            intern(u.getName(), stringIndex, strings);
+        }
+
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        Map<String, Integer> bookIndex = new HashMap<>(books.size() * 2);
+        out.writeInt(books.size());
+        for (Book b : books) {
+            bookIndex.put(b.getId(), bookIndex.size());
+            out.writeInt(stringIndex.get(b.getId()));
+            out.writeInt(ref(b.getTitle(), stringIndex));
+            out.writeInt(ref(b.getAuthor(), stringIndex));
+            out.writeInt(ref(b.getGenre(), stringIndex));
+            out.writeInt(b.getAvailableCopies());
+        }
+
+        boolean historyComplete = true;
+        out.writeInt(users.size());
+        for (User u : users) {
+            out.writeInt(stringIndex.get(u.getId()));
+            out.writeInt(ref(u.getName(), stringIndex));
+            out.writeByte((u instanceof Admin) ? ROLE_ADMIN : ROLE_USER);
+            historyComplete &= u.isHistoryLoaded();
+        }
+
+        writeEdges(out, users, bookIndex, false);
+
+        out.writeBoolean(historyComplete);
+        if (historyComplete) writeEdges(out, users, bookIndex, true);
+    }
+
+    private static void writeEdges(DataOutputStream out, List<User> users,
+                                   Map<String, Integer> bookIndex, boolean history) throws IOException {
+        // one copy per user, so the count matches what is written even while users borrow
+        List<List<Book>> edges = new ArrayList<>(users.size());
+        int count = 0;
+        for (User u : users) {
+            List<Book> books = history ? u.getHistoryBooks() : u.getBorrowedBooks();
+            edges.add(books);
+            count += books.size();
+        }
+
+        out.writeInt(count);
+        for (int i = 0; i < users.size(); i++) {
+            for (Book b : edges.get(i)) {
+                out.writeInt(i);
+                out.writeInt(bookIndex.get(b.getId()));
+            }
+        }
+    }
+
+    private static void intern(String s, Map<String, Integer> index, List<String> strings) {
+        if (s != null && !index.containsKey(s)) {
+            index.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    private static int ref(String s, Map<String, Integer> index) {
+        return s == null ? -1 : index.get(s);
+    }
+
+    // Loads the snapshot into an empty system. Returns false, leaving the system untouched,
+    // when the file is missing, from another generation or format, damaged, or lacks the
+    // history the caller requires.
+    static boolean read(Path path, LibrarySystem system, long generation, boolean requireHistory) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) return false;
+
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (data.getLong() != MAGIC || data.getInt() != VERSION) return false;
+            if (data.getLong() != generation) return false;
+            long length = data.getLong();
+            long checksum = data.getLong();
+            if (length != size - HEADER_SIZE) return false;
+
+            CRC32C crc = new CRC32C();
+            crc.update(data.duplicate());
+            if (crc.getValue() != checksum) return false;
+
+            return readPayload(data, system, requireHistory);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static boolean readPayload(ByteBuffer data, LibrarySystem system, boolean requireHistory) throws IOException {
+        // Decode everything first so a bad record can't leave the system half loaded
+        Book[] books;
+        User[] users;
+        int[] borrowed, history = null;
+        try {
+            String[] strings = new String[data.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[data.getInt()];
+                data.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            books = new Book[data.getInt()];
+            for (int i = 0; i < books.length; i++) {
+                books[i] = new Book(strings[data.getInt()], str(strings, data.getInt()),
+                        str(strings, data.getInt()), str(strings, data.getInt()), data.getInt());
+            }
+
+            users = new User[data.getInt()];
+            for (int i = 0; i < users.length; i++) {
+                String id = strings[data.getInt()];
+                String name = str(strings, data.getInt());
+                users[i] = (data.get() == ROLE_ADMIN) ? new Admin(id, name) : new RegularUser(id, name);
+            }
+
+            borrowed = readEdges(data);
+            if (data.get() != 0) history = readEdges(data);
+            if (data.hasRemaining()) throw new IOException(data.remaining() + " bytes after the last record");
+        } catch (Exception e) {
+            throw new IOException("Corrupt snapshot record", e);
+        }
+        if (history == null && requireHistory) return false;
+
+        for (Book b : books) system.addBook(b);
+        for (User u : users) system.addUser(u);
+
+        for (int i = 0; i < borrowed.length; i += 2) {
+            users[borrowed[i]].addBorrowedBook(books[borrowed[i + 1]]);
+        }
+        if (history != null) {
+            for (int i = 0; i < history.length; i += 2) {
+                users[history[i]].addHistoryBook(books[history[i + 1]]);
+            }
+        } else {
+            for (User u : users) u.deferHistoryLoading();
+        }
+        return true;
+    }
+
+    // [user index, book index] pairs, flattened
+    private static int[] readEdges(ByteBuffer data) {
+        int[] edges = new int[data.getInt() * 2];
+        for (int i = 0; i < edges.length; i++) edges[i] = data.getInt();
+        return edges;
+    }
+
+    private static String str(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    // Counts and checksums the payload on its way to the file
+    private static final class CountingCrcStream extends OutputStream {
+        private final OutputStream out;
+        private final CRC32C crc;
+        private long count;
+
+        CountingCrcStream(OutputStream out, CRC32C crc) {
+            this.out = out;
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package storage;
+
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+
+// Slots of BookColumns kept sorted by an order over the books in them, as a list of leaves
+// of up to LEAF ints: a leaf splits in two when full and is dropped when empty. That is
+// about 5 bytes per entry, where a sorted map needs a node, an index level and a key object.
+// Not thread-safe; BookCatalog guards it with its lock. An entry's sort key must not change
+// while it is in the list, so edits remove and insert again.
+final class SortedSlots {
+
+    private static final int LEAF = 256;
+
+    private final IntBinaryOperator order;
+    private int[][] leaves = new int[0][];
+    private int[] sizes = new int[0];
+    private int leafCount = 0;
+    private int size = 0;
+
+    SortedSlots(IntBinaryOperator order) {
+        this.order = order;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // A position in the list; past either end it is no longer valid
+    final class Cursor {
+        private int leaf, index;
+
+        private Cursor(int leaf, int index) {
+            this.leaf = leaf;
+            this.index = index;
+        }
+
+        boolean valid() {
+            return leaf >= 0 && leaf < leafCount && index < sizes[leaf];
+        }
+
+        int slot() {
+            return leaves[leaf][index];
+        }
+
+        void next() {
+            if (++index >= sizes[leaf]) {
+                leaf++;
+                index = 0;
+            }
+        }
+
+        void previous() {
+            if (index > 0) {
+                index--;
+            } else {
+                leaf--;
+                index = leaf >= 0 ? sizes[leaf] - 1 : 0;
+            }
+        }
+    }
+
+    Cursor first() {
+        return new Cursor(0, 0);
+    }
+
+    // Just past the last entry; previous() moves onto it
+    Cursor end() {
+        return new Cursor(leafCount, 0);
+    }
+
+    // The first entry for which before no longer holds; it must hold for a prefix of the list
+    Cursor lowerBound(IntPredicate before) {
+        int lo = 0, hi = leafCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (before.test(leaves[mid][sizes[mid] - 1])) lo = mid + 1;
+            else hi = mid;
+        }
+        if (lo == leafCount) return end();
+
+        int[] leaf = leaves[lo];
+        int a = 0, b = sizes[lo];
+        while (a < b) {
+            int mid = (a + b) >>> 1;
+            if (before.test(leaf[mid])) a = mid + 1;
+            else b = mid;
+        }
+        return new Cursor(lo, a);
+    }
+
+    void insert(int slot) {
+        if (leafCount == 0) {
+            int[] leaf = new int[LEAF];
+            leaf[0] = slot;
+            addLeaf(0, leaf, 1);
+            size = 1;
+            return;
+        }
+
+        Cursor at = lowerBound(s -> order.applyAsInt(s, slot) < 0);
+        int leaf = at.leaf, index = at.index;
+        if (leaf == leafCount) {
+            leaf = leafCount - 1;
+            index = sizes[leaf];
+        }
+        if (sizes[leaf] == LEAF) {
+            split(leaf);
+            if (index > sizes[leaf]) {
+                index -= sizes[leaf];
+                leaf++;
+            }
+        }
+
+        int[] entries = leaves[leaf];
+        System.arraycopy(entries, index, entries, index + 1, sizes[leaf] - index);
+        entries[index] = slot;
+        sizes[leaf]++;
+        size++;
+    }
+
+    boolean remove(int slot) {
+        Cursor at = lowerBound(s -> order.applyAsInt(s, slot) < 0);
+        if (!at.valid() || at.slot() != slot) return false;
+
+        int[] entries = leaves[at.leaf];
+        int remaining = --sizes[at.leaf];
+        System.arraycopy(entries, at.index + 1, entries, at.index, remaining - at.index);
+        size--;
+        if (remaining == 0) removeLeaf(at.leaf);
+        return true;
+    }
+
+    // Replaces the contents with these slots, in any order
+    void rebuild(int[] slots) {
+        int[] sorted = slots.clone();
+        sort(sorted, new int[sorted.length], 0, sorted.length);
+
+        clear();
+        // leaves start three quarters full, so inserts don't split them right away
+        int fill = LEAF * 3 / 4;
+        for (int from = 0; from < sorted.length; from += fill) {
+            int n = Math.min(fill, sorted.length - from);
+            int[] leaf = new int[LEAF];
+            System.arraycopy(sorted, from, leaf, 0, n);
+            addLeaf(leafCount, leaf, n);
+        }
+        size = sorted.length;
+    }
+
+    void clear() {
+        leaves = new int[0][];
+        sizes = new int[0];
+        leafCount = 0;
+        size = 0;
+    }
+
+    // Merge sort of a[from, to) by the order, using tmp as scratch space
+    private void sort(int[] a, int[] tmp, int from, int to) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int v = a[i], j = i - 1;
+                while (j >= from && order.applyAsInt(a[j], v) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(a, tmp, from, mid);
+        sort(a, tmp, mid, to);
+        if (order.applyAsInt(a[mid - 1], a[mid]) <= 0) return;
+
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && order.applyAsInt(tmp[i], tmp[j]) <= 0)) a[k] = tmp[i++];
+            else a[k] = tmp[j++];
+        }
+    }
+
+    private void split(int leaf) {
+        int half = sizes[leaf] / 2;
+        int[] right = new int[LEAF];
+        System.arraycopy(leaves[leaf], half, right, 0, sizes[leaf] - half);
+        addLeaf(leaf + 1, right, sizes[leaf] - half);
+        sizes[leaf] = half;
+    }
+
+    private void addLeaf(int at, int[] leaf, int leafSize) {
+        if (leafCount == leaves.length) {
+            int capacity = Math.max(16, leafCount * 2);
+            leaves = Arrays.copyOf(leaves, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        System.arraycopy(leaves, at, leaves, at + 1, leafCount - at);
+        System.arraycopy(sizes, at, sizes, at + 1, leafCount - at);
+        leaves[at] = leaf;
+        sizes[at] = leafSize;
+        leafCount++;
+    }
+
+    private void removeLeaf(int at) {
+        System.arraycopy(leaves, at + 1, leaves, at, leafCount - at - 1);
+        System.arraycopy(sizes, at + 1, sizes, at, leafCount - at - 1);
+        leafCount--;
+        leaves[leafCount] = null;
+    }
+}
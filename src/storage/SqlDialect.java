@@ -0,0 +1,104 @@
+package storage;
+
+import java.sql.SQLException;
+import java.util.List;
+
+// The SQL that differs between the database engines DatabaseStorage can run on
+public enum SqlDialect {
+
+    MYSQL("com.mysql.cj.jdbc.Driver", List.of()) {
+        @Override
+        String upsertBook() {
+            return """
+                INSERT INTO books (id, title, author, genre, copies) VALUES (?, ?, ?, ?, ?)
+                ON DUPLICATE KEY UPDATE title = VALUES(title), author = VALUES(author),
+                    genre = VALUES(genre), copies = VALUES(copies)
+            """;
+        }
+
+        @Override
+        String upsertUser() {
+            return """
+                INSERT INTO users (id, name, role) VALUES (?, ?, ?)
+                ON DUPLICATE KEY UPDATE name = VALUES(name), role = VALUES(role)
+            """;
+        }
+
+        @Override
+        String insertIgnore() {
+            return "INSERT IGNORE";
+        }
+
+        // ER_DUP_FIELDNAME, ER_DUP_KEYNAME: the column or index is already there
+        @Override
+        boolean alreadyApplied(SQLException e) {
+            return e.getErrorCode() == 1060 || e.getErrorCode() == 1061;
+        }
+    },
+
+    // Embedded, single file. WAL lets readers run while a save is writing; NORMAL sync is
+    // still crash-safe in WAL mode. foreign_keys is off by default in SQLite and is needed
+    // for ON DELETE CASCADE. These are per connection, so every pooled connection runs them.
+    SQLITE("org.sqlite.JDBC", List.of(
+            "PRAGMA journal_mode = WAL",
+            "PRAGMA synchronous = NORMAL",
+            "PRAGMA foreign_keys = ON",
+            "PRAGMA busy_timeout = 5000",
+            "PRAGMA temp_store = MEMORY",
+            "PRAGMA cache_size = -65536")) {
+        @Override
+        String upsertBook() {
+            return """
+                INSERT INTO books (id, title, author, genre, copies) VALUES (?, ?, ?, ?, ?)
+                ON CONFLICT(id) DO UPDATE SET title = excluded.title, author = excluded.author,
+                    genre = excluded.genre, copies = excluded.copies
+            """;
+        }
+
+        @Override
+        String upsertUser() {
+            return """
+                INSERT INTO users (id, name, role) VALUES (?, ?, ?)
+                ON CONFLICT(id) DO UPDATE SET name = excluded.name, role = excluded.role
+            """;
+        }
+
+        @Override
+        String insertIgnore() {
+            return "INSERT OR IGNORE";
+        }
+    };
+
+    private final String driverClass;
+    private final List<String> connectionInit;
+
+    SqlDialect(String driverClass, List<String> connectionInit) {
+        this.driverClass = driverClass;
+        this.connectionInit = connectionInit;
+    }
+
+    String driverClass() {
+        return driverClass;
+    }
+
+    // Run on every new physical connection
+    List<String> connectionInit() {
+        return connectionInit;
+    }
+
+    abstract String upsertBook();
+
+    abstract String upsertUser();
+
+    // INSERT that silently skips rows whose key already exists
+    abstract String insertIgnore();
+
+    // Whether a failed migration statement only failed because its change already exists
+    boolean alreadyApplied(SQLException e) {
+        return false;
+    }
+
+    String insertEdge(String table) {
+        return insertIgnore() + " INTO " + table + " (userId, bookId) VALUES (?, ?)";
+    }
+}
@@ -0,0 +1,27 @@
+package storage;
+
+// Where LibrarySystem is loaded from and saved to
+public interface StorageEngine extends AutoCloseable {
+
+    void loadData(LibrarySystem system);
+
+    // Writes the pending changes; false if they could not be saved (they stay pending)
+    boolean saveData(LibrarySystem system);
+
+    @Override
+    void close();
+
+    // STORAGE_ENGINE = mysql (default) | sqlite | memory
+    static StorageEngine fromEnv() {
+        String engine = System.getenv().getOrDefault("STORAGE_ENGINE", "mysql").trim().toLowerCase();
+        return switch (engine) {
+            case "sqlite" -> new DatabaseStorage(SqlDialect.SQLITE);
+            case "memory", "none" -> new InMemoryStorage();
+            case "mysql", "" -> new DatabaseStorage(SqlDialect.MYSQL);
+            default -> {
+                System.out.println("Unknown STORAGE_ENGINE '" + engine + "', using mysql.");
+                yield new DatabaseStorage(SqlDialect.MYSQL);
+            }
+        };
+    }
+}
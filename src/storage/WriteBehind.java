@@ -0,0 +1,152 @@
+package storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Saves tracked changes from a background thread so interactive operations never wait on
+// the database. The ChangeTracker is the queue: repeated changes to the same book, user or
+// edge collapse into one pending row, and each flush writes them as one batched transaction.
+// A flush runs every interval, or sooner once batchSize distinct changes are pending.
+public class WriteBehind implements AutoCloseable {
+
+    public record Stats(int queueDepth, long flushes, long failures, long recorded, long written,
+                        long lastFlushMillis, long maxFlushMillis, long totalFlushMillis) {
+
+        // Changes reported per row written; above 1 means repeated changes were merged
+        public double coalescingRatio() {
+            return written == 0 ? 1.0 : (double) recorded / written;
+        }
+
+        public long avgFlushMillis() {
+            return flushes == 0 ? 0 : totalFlushMillis / flushes;
+        }
+
+        @Override
+        public String toString() {
+            return "queue=" + queueDepth + ", flushes=" + flushes + ", failures=" + failures +
+                    ", recorded=" + recorded + ", written=" + written +
+                    String.format(", coalescing=%.2f", coalescingRatio()) +
+                    ", lastFlush=" + lastFlushMillis + "ms, avgFlush=" + avgFlushMillis() +
+                    "ms, maxFlush=" + maxFlushMillis + "ms";
+        }
+    }
+
+    // Drains the tracker and writes it; returns what was written
+    interface Flusher {
+        ChangeTracker.Changes flush() throws Exception;
+    }
+
+    private final ChangeTracker tracker;
+    private final Flusher flusher;
+    private final long intervalNanos;
+    private final int batchSize;
+
+    private final Thread thread;
+    private final Thread shutdownHook;
+    private volatile boolean running = false, flushRequested = false;
+
+    private final Object statsLock = new Object();
+    private long flushes, failures, recorded, written, lastFlushNanos, maxFlushNanos, totalFlushNanos;
+
+    WriteBehind(ChangeTracker tracker, Flusher flusher, long intervalMillis, int batchSize) {
+        this.tracker = tracker;
+        this.flusher = flusher;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        this.batchSize = Math.max(1, batchSize);
+
+        thread = new Thread(this::run, "write-behind");
+        thread.setDaemon(true);
+        // Ctrl+C and System.exit still drain the queue
+        shutdownHook = new Thread(this::close, "write-behind-shutdown");
+    }
+
+    void start() {
+        running = true;
+        tracker.setListener(this::changeRecorded);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Called under the tracker's lock, so it only flags and wakes the thread
+    private void changeRecorded(int pending) {
+        if (pending >= batchSize && !flushRequested) {
+            flushRequested = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        long deadline = System.nanoTime() + intervalNanos;
+        // after a failure the size trigger waits for the next interval instead of retrying at once
+        long retryAt = 0;
+
+        while (running) {
+            long now = System.nanoTime();
+            if (now < deadline && !(flushRequested && now >= retryAt)) {
+                LockSupport.parkNanos(this, deadline - now);
+                continue;
+            }
+
+            flushRequested = false;
+            boolean ok = flushOnce();
+            deadline = System.nanoTime() + intervalNanos;
+            retryAt = ok ? 0 : deadline;
+        }
+    }
+
+    private boolean flushOnce() {
+        long start = System.nanoTime();
+        try {
+            ChangeTracker.Changes changes = flusher.flush();
+            if (!changes.isEmpty()) {
+                long elapsed = System.nanoTime() - start;
+                synchronized (statsLock) {
+                    flushes++;
+                    recorded += changes.recorded();
+                    written += changes.size();
+                    lastFlushNanos = elapsed;
+                    maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+                    totalFlushNanos += elapsed;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            synchronized (statsLock) {
+                failures++;
+            }
+            System.out.println("Background save failed, will retry: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public Stats stats() {
+        int depth = tracker.pendingSize();
+        synchronized (statsLock) {
+            return new Stats(depth, flushes, failures, recorded, written,
+                    TimeUnit.NANOSECONDS.toMillis(lastFlushNanos), TimeUnit.NANOSECONDS.toMillis(maxFlushNanos),
+                    TimeUnit.NANOSECONDS.toMillis(totalFlushNanos));
+        }
+    }
+
+    // Stops the thread and writes whatever is still queued
+    @Override
+    public synchronized void close() {
+        if (!running) return;
+        running = false;
+        tracker.setListener(null);
+
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushOnce();
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // already shutting down: this is the hook
+        }
+    }
+}
@@ -2,61 +2,126 @@ package ui;
 
 import entities.Admin;
 import entities.Book;
+import entities.BorrowResult;
 import entities.RegularUser;
 import entities.User;
+import services.FullTextIndex;
+import services.Page;
+import storage.CatalogExport;
+import storage.CatalogImport;
 import storage.LibrarySystem;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.function.Predicate;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class ConsoleUI {
-    private Scanner scanner = new Scanner(System.in);
+    private final Scanner scanner;
+    // Buffered per session: written out whenever the UI waits for input
+    private final PrintStream out;
     private final LibrarySystem library = LibrarySystem.getInstance();
+    private static final int PAGE_SIZE = 20;
+    private final TableRenderer bookTable, userTable;
+
+    // Network sessions export only into directories below exportRoot (not at all when it is
+    // null); the local console may export anywhere
+    private final Path exportRoot;
+    private final boolean confined;
+
+    public ConsoleUI() {
+        this(System.in, System.out);
+    }
+
+    public ConsoleUI(InputStream in, PrintStream out) {
+        this(in, out, null, false);
+    }
+
+    public ConsoleUI(InputStream in, PrintStream out, Path exportRoot, boolean confined) {
+        this.scanner = new Scanner(in, StandardCharsets.UTF_8);
+        this.out = out;
+        this.exportRoot = exportRoot == null ? null : exportRoot.toAbsolutePath().normalize();
+        this.confined = confined;
+        bookTable = new TableRenderer(out, "ID", 10, "Title", 25, "Author", 20, "Genre", 15, "Copies", 6);
+        userTable = new TableRenderer(out, "ID", 13, "Name", 22, "Role", 5);
+    }
+
+    private String readLine() {
+        out.flush();
+        return scanner.nextLine();
+    }
+
+    // Asks again until the line starts with a number. InputMismatchException is a
+    // NoSuchElementException, which network sessions take to mean the client hung up.
+    private int readInt() {
+        while (true) {
+            out.flush();
+            try {
+                int value = scanner.nextInt();
+                scanner.nextLine(); // consume newline
+                return value;
+            } catch (InputMismatchException e) {
+                scanner.nextLine(); // drop the bad input
+                out.print("Please enter a whole number: ");
+            }
+        }
+    }
+
     private void showWelcomePage() {
-        System.out.println("======================================");
-        System.out.println("Welcome to the Library System!");
-        System.out.println("======================================");
-        System.out.println("Please choose an option:");
-        System.out.println("1. Login");
-        System.out.println("2. Exit");
+        out.println("======================================");
+        out.println("Welcome to the Library System!");
+        out.println("======================================");
+        out.println("Please choose an option:");
+        out.println("1. Login");
+        out.println("2. Exit");
     }
     public void handleWelcomeMenu() throws Exception {
 
         while (true) {
             showWelcomePage();
 
-            System.out.print("Enter your choice: ");
-            String choice = scanner.nextLine().trim();
+            out.print("Enter your choice: ");
+            String choice = readLine().trim();
 
             switch (choice) {
                 case "1":
                     login();
                     return;
                 case "2":
-                    System.out.println("Goodbye! Thanks for using the Library System.");
+                    out.println("Goodbye! Thanks for using the Library System.");
                     return;
                 default:
-                    System.out.println("Invalid input. Please enter 1 or 2");
+                    out.println("Invalid input. Please enter 1 or 2");
             }
         }
     }
 
     private void register() {
-        System.out.print("Enter name: ");
-        String name = scanner.nextLine();
+        out.print("Enter name: ");
+        String name = readLine();
 
         String id;
         while (true) {
-            System.out.print("Enter ID: ");
-            id = scanner.nextLine();
+            out.print("Enter ID: ");
+            id = readLine();
             if (library.hasUser(id)) {
-                System.out.println("ID already exists.");
+                out.println("ID already exists.");
             } else break;
         }
 
         String isAdmin = "";
         while(!isAdmin.equals("y") && !isAdmin.equals("n")) {
-            System.out.print("Admin Role? (y/n): ");
-            isAdmin = scanner.nextLine().trim().toLowerCase();
+            out.print("Admin Role? (y/n): ");
+            isAdmin = readLine().trim().toLowerCase();
         }
 
         User newUser;
@@ -67,7 +132,7 @@ public class ConsoleUI {
         }
 
         library.addUser(newUser);
-        System.out.println("Registration successful!");
+        out.println("Registration successful!");
     }
 
 
@@ -76,17 +141,17 @@ public class ConsoleUI {
         User user;
        do {
 
-           System.out.print("Enter your ID: ");
-           String id = scanner.nextLine();
+           out.print("Enter your ID: ");
+           String id = readLine();
 
            user = library.findUserById(id);
            if (user == null) {
-               System.out.println("User not found.");
+               out.println("User not found.");
            }
 
        }while(user == null);
 
-        System.out.println("Login successful! Welcome, " + user.getName());
+        out.println("Login successful! Welcome, " + user.getName());
 
         if (user instanceof Admin admin) {
             handleAdminMenu(admin);
@@ -99,88 +164,200 @@ public class ConsoleUI {
     /// Regular user stuff
 
     public void handleRegularUserMenu(User user) throws Exception {
-        Scanner scanner = new Scanner(System.in);
         String choice;
 
         do {
-            System.out.println("\n--- Regular User Menu ---");
-            System.out.println("1. View Book Catalog");
-            System.out.println("2. Borrow Book");
-            System.out.println("3. Return Book");
-            System.out.println("4. View My Borrowed Books");
-            System.out.println("0. Logout");
-            System.out.print("Enter your choice: ");
-
-            choice = scanner.nextLine().trim();
+            out.println("\n--- Regular User Menu ---");
+            out.println("1. View Book Catalog");
+            out.println("2. Borrow Book");
+            out.println("3. Return Book");
+            out.println("4. View My Borrowed Books");
+            out.println("5. Search Books");
+            out.println("6. Browse by Genre");
+            out.println("7. Browse by Author");
+            out.println("8. Find by Title");
+            out.println("0. Logout");
+            out.print("Enter your choice: ");
+
+            choice = readLine().trim();
 
             switch (choice) {
                 case "1" -> viewCatalog();
                 case "2" -> borrowBook(user);
                 case "3" -> returnBook(user);
                 case "4" -> viewBorrowedBooks(user);
-                case "0" -> {System.out.println("Logging out..."); handleWelcomeMenu();}
-                default -> System.out.println("Invalid option.");
+                case "5" -> searchBooks();
+                case "6" -> browseByGenre();
+                case "7" -> browseByAuthor();
+                case "8" -> findByTitle();
+                case "0" -> {out.println("Logging out..."); handleWelcomeMenu();}
+                default -> out.println("Invalid option.");
             }
         } while (!choice.equals("0"));
     }
 
     public void viewCatalog() {
-        library.viewBooks();
+        out.print("Sort by title? (y/N): ");
+        Function<String, Page<Book>> pages = readLine().trim().equalsIgnoreCase("y")
+                ? after -> library.browseByTitle(after, PAGE_SIZE, false, null)
+                : after -> library.browseBooks(after, PAGE_SIZE);
+        showPages("📚 --- Book Catalog ---", bookTable, pages, this::bookRow, library.booksSize());
     }
 
-    public void borrowBook(User user) {
-        // ask for bookId, call user.borrowBook(bookId), handle exception
-        System.out.print("Enter the Book ID to borrow: ");
-        String bookId = scanner.nextLine().trim();
+    private void bookRow(TableRenderer table, Book b) {
+        table.cell(b.getId()).cell(b.getTitle()).cell(b.getAuthor()).cell(b.getGenre()).cell(b.getAvailableCopies())
+                .endRow();
+    }
 
-        try {
-            user.borrowBook(bookId);
-            System.out.println("Book borrowed successfully!");
-        } catch (Exception e) {
-            System.out.println(" " + e.getMessage());
+    private void userRow(TableRenderer table, User user) {
+        table.cell(user.getId()).cell(user.getName()).cell(user instanceof Admin ? "Admin" : "User").endRow();
+    }
+
+    // One page on screen at a time; only that page is fetched and formatted. total is the
+    // item count if known, else -1.
+    private <T> void showPages(String title, TableRenderer table, Function<String, Page<T>> pages,
+                               BiConsumer<TableRenderer, T> row, int total) {
+        Pager<T> pager = new Pager<>(pages);
+        if (pager.current().items().isEmpty()) {
+            out.println(" Nothing to show.");
+            return;
         }
+        int pageCount = total < 0 ? -1 : (total + PAGE_SIZE - 1) / PAGE_SIZE;
 
+        while (true) {
+            table.line("\n" + title).header();
+            for (T item : pager.current().items()) row.accept(table, item);
+            boolean onlyPage = pager.pageNumber() == 1 && !pager.current().hasMore();
+            if (!onlyPage) table.line("Page " + pager.pageNumber() + (pageCount > 0 ? " of " + pageCount : ""));
+            table.flush();
+            if (onlyPage) return;
+
+            out.print("[Enter] next page, p previous, a page number to jump to, 0 to go back: ");
+            String choice = readLine().trim().toLowerCase();
+            boolean moved;
+            switch (choice) {
+                case "", "n" -> moved = pager.next();
+                case "p" -> moved = pager.previous();
+                case "0" -> {
+                    return;
+                }
+                default -> {
+                    try {
+                        moved = pager.jump(Integer.parseInt(choice));
+                    } catch (NumberFormatException e) {
+                        out.println(" Invalid option.");
+                        continue;
+                    }
+                }
+            }
+            if (!moved) out.println(" No such page.");
+        }
     }
 
-    public void returnBook(User user) {
-        // ask for bookId, call user.returnBook(bookId), handle exception
-        System.out.print(" Enter the Book ID to return: ");
-        String bookId = scanner.nextLine().trim();
+    public void searchBooks() {
+        out.print("Search by title, author or genre: ");
+        String query = readLine().trim();
 
-        try {
-            user.returnBook(bookId);
-            System.out.println(" Book returned successfully!");
-        } catch (Exception e) {
-            System.out.println(" " + e.getMessage());
+        List<FullTextIndex.Hit<Book>> hits = library.searchBooks(query, 10);
+        if (hits.isEmpty()) {
+            out.println(" No matching books.");
+            return;
         }
 
+        out.println("\n--- Search Results ---");
+        out.printf("%-10s | %-25s | %-20s | %-15s | %-6s | %-5s\n",
+                "ID", "Title", "Author", "Genre", "Copies", "Score");
+        out.println("---------------------------------------------------------------------------------------");
+        for (FullTextIndex.Hit<Book> hit : hits) {
+            Book b = hit.item();
+            out.printf("%-10s | %-25s | %-20s | %-15s | %-6d | %5.2f\n",
+                    b.getId(), b.getTitle(), b.getAuthor(), b.getGenre(), b.getAvailableCopies(), hit.score());
+        }
     }
 
-    public void viewBorrowedBooks(User user) {
-
-        System.out.println("\n--- Borrowed Books ---");
-        System.out.printf("%-10s | %-25s | %-20s | %-15s \n","ID", "Title", "Author", "Genre");
-        System.out.println("-------------------------------------------------------------------------------");
-        for (Book b : user.getBorrowedBooks()) {
-            System.out.printf("%-10s | %-25s | %-20s | %-15s \n",
-                    b.getId(), b.getTitle(), b.getAuthor(), b.getGenre());
+    // Titles matching ignoring case, accents and extra spaces; failing that, the titles that
+    // start with what was typed
+    public void findByTitle() {
+        out.print("Enter a title, or the start of one: ");
+        String title = readLine().trim();
+        List<Book> books = library.findBooksByTitle(title);
+        String heading = "--- Title: " + title + " ---";
+        if (books.isEmpty()) {
+            books = library.findBooksByTitlePrefix(title, PAGE_SIZE);
+            heading = "--- Titles starting with: " + title + " ---";
         }
+        showPages(heading, bookTable, Pager.ofList(books, PAGE_SIZE), this::bookRow, books.size());
+    }
+
+    public void browseByGenre() {
+        out.println("Genres: " + String.join(", ", library.getGenres()));
+        out.print("Enter a genre: ");
+        String genre = readLine().trim();
+        Predicate<Book> filter = availableOnlyFilter();
+        showPages("--- Genre: " + genre + " ---", bookTable,
+                after -> library.browseByGenre(genre, after, PAGE_SIZE, false, filter), this::bookRow, -1);
+    }
+
+    public void browseByAuthor() {
+        out.print("Enter an author: ");
+        String author = readLine().trim();
+        Predicate<Book> filter = availableOnlyFilter();
+        showPages("--- Author: " + author + " ---", bookTable,
+                after -> library.browseByAuthor(author, after, PAGE_SIZE, false, filter), this::bookRow, -1);
+    }
+
+    private Predicate<Book> availableOnlyFilter() {
+        out.print("Only books with copies available? (y/N): ");
+        return readLine().trim().equalsIgnoreCase("y") ? b -> b.getAvailableCopies() > 0 : null;
+    }
+
+    public void borrowBook(User user) {
+        // ask for bookId, call user.tryBorrow(bookId), report the result
+        out.print("Enter the Book ID to borrow: ");
+        String bookId = readLine().trim();
+
+        BorrowResult result = user.tryBorrow(bookId);
+        if (result == BorrowResult.OK) out.println("Book borrowed successfully!");
+        else out.println(" " + result.getMessage());
+
+    }
+
+    public void returnBook(User user) {
+        // ask for bookId, call user.tryReturn(bookId), report the result
+        out.print(" Enter the Book ID to return: ");
+        String bookId = readLine().trim();
+
+        BorrowResult result = user.tryReturn(bookId);
+        if (result == BorrowResult.OK) out.println(" Book returned successfully!");
+        else out.println(" " + result.getMessage());
+
+    }
+
+    public void viewBorrowedBooks(User user) {
+        List<Book> borrowed = user.getBorrowedBooks();
+        showPages("--- Borrowed Books ---", bookTable, Pager.ofList(borrowed, PAGE_SIZE), this::bookRow,
+                borrowed.size());
     }
 
     /// Admin stuff
     public void handleAdminMenu(Admin admin) throws Exception {
         while (true) {
-            System.out.println("\n=== Admin Menu ===");
-            System.out.println("1️.  Add Book");
-            System.out.println("2.  Edit Book");
-            System.out.println("3.  Delete Book");
-            System.out.println("4.  Register New User");
-            System.out.println("5.  View All Books");
-            System.out.println("6.  View All Users");
-            System.out.println("0.  Logout");
-            System.out.print(" Enter your choice: ");
-
-            String choice = scanner.nextLine().trim();
+            out.println("\n=== Admin Menu ===");
+            out.println("1️.  Add Book");
+            out.println("2.  Edit Book");
+            out.println("3.  Delete Book");
+            out.println("4.  Register New User");
+            out.println("5.  View All Books");
+            out.println("6.  View All Users");
+            out.println("7.  Search Books");
+            out.println("8.  Browse by Genre");
+            out.println("9.  Browse by Author");
+            out.println("10. Find by Title");
+            if (canExport()) out.println("11. Export Catalog");
+            out.println("0.  Logout");
+            out.print(" Enter your choice: ");
+
+            String choice = readLine().trim();
 
             switch (choice) {
                 case "1" -> addBook();
@@ -189,60 +366,119 @@ public class ConsoleUI {
                 case "4" -> register();
                 case "5" -> viewCatalog();
                 case "6" -> viewUsers();
+                case "7" -> searchBooks();
+                case "8" -> browseByGenre();
+                case "9" -> browseByAuthor();
+                case "10" -> findByTitle();
+                case "11" -> {
+                    if (canExport()) exportCatalog();
+                    else out.println(" Invalid option. Try again.");
+                }
                 case "0" -> {
-                    System.out.println(" Logging out...");
+                    out.println(" Logging out...");
                     handleWelcomeMenu();
                     return;
                 }
-                default -> System.out.println(" Invalid option. Try again.");
+                default -> out.println(" Invalid option. Try again.");
             }
         }
     }
     public void viewUsers()
     {
-        library.viewUsers();
+        out.print("Names starting with (Enter for all users): ");
+        String prefix = readLine().trim();
+        if (!prefix.isEmpty()) {
+            List<User> users = library.getUserSearch().searchByPrefix(prefix, PAGE_SIZE);
+            showPages("📚 --- Users: " + prefix + "... ---", userTable, Pager.ofList(users, PAGE_SIZE), this::userRow,
+                    users.size());
+            return;
+        }
+        out.print("Sort by name? (y/N): ");
+        Function<String, Page<User>> pages = readLine().trim().equalsIgnoreCase("y")
+                ? after -> library.getUserSearch().page(after, PAGE_SIZE, false, null)
+                : after -> library.browseUsers(after, PAGE_SIZE);
+        showPages("📚 --- Users ---", userTable, pages, this::userRow, library.usersSize());
+    }
+
+    private boolean canExport() {
+        return !confined || exportRoot != null;
+    }
+
+    private void exportCatalog() {
+        out.print(confined ? "Export to directory (under " + exportRoot + "): " : "Export to directory: ");
+        String directory = readLine().trim();
+        out.print("Format, csv or jsonl (csv): ");
+        CatalogImport.Format format = readLine().trim().equalsIgnoreCase("jsonl")
+                ? CatalogImport.Format.JSONL : CatalogImport.Format.CSV;
+        out.print("Compress with gzip? (y/N): ");
+        boolean gzip = readLine().trim().equalsIgnoreCase("y");
+
+        try {
+            Path target = confined ? confinedExportPath(directory) : Path.of(directory);
+            if (target == null) {
+                out.println(" Export failed: the directory must be inside " + exportRoot);
+                return;
+            }
+            out.println(" " + new CatalogExport(library, format, gzip).exportTo(target, 3));
+        } catch (IOException | InvalidPathException e) {
+            out.println(" Export failed: " + e.getMessage());
+        }
+    }
+
+    // The directory resolved against exportRoot, or null if it (or a symlink on the way to it)
+    // leads outside
+    private Path confinedExportPath(String directory) throws IOException {
+        Path target = exportRoot.resolve(directory).normalize();
+        if (!target.startsWith(exportRoot)) return null;
+
+        Path existing = target;
+        while (existing != null && !Files.exists(existing)) existing = existing.getParent();
+        if (existing != null && Files.exists(exportRoot)
+                && !existing.toRealPath().startsWith(exportRoot.toRealPath())) {
+            return null;
+        }
+        return target;
     }
 
     private void addBook() throws Exception {
-        System.out.println("\n Add New Book:");
+        out.println("\n Add New Book:");
 
-        System.out.print("Enter Book ID: ");
-        String id = scanner.nextLine();
+        out.print("Enter Book ID: ");
+        String id = readLine();
 
-        System.out.print("Enter Title: ");
-        String title = scanner.nextLine();
+        out.print("Enter Title: ");
+        String title = readLine();
 
-        System.out.print("Enter Author: ");
-        String author = scanner.nextLine();
+        out.print("Enter Author: ");
+        String author = readLine();
 
-        System.out.print("Enter Genre: ");
-        String genre = scanner.nextLine();
+        out.print("Enter Genre: ");
+        String genre = readLine();
 
-        System.out.print("Enter Available Copies: ");
-        int copies = scanner.nextInt();
-        scanner.nextLine(); // consume newline
+        out.print("Enter Available Copies: ");
+        int copies = readInt();
 
         Book book = new Book(id, title, author, genre, copies);
-        library.addBook(book);
-        if(!library.hasBook(book.getID())) System.out.println(" Book added successfully!");
+        if (library.addBook(book)) out.println(" Book added successfully!");
+        else out.println(" A book with that ID already exists.");
     }
 
     private void deleteBook() {
 
         if(library.booksSize() == 0)
         {
-            System.out.println("There are no books to delete.");
+            out.println("There are no books to delete.");
             return;
         }
 
-        System.out.print("\n🗑 Enter the ID of the book to delete: ");
-        String bookId = scanner.nextLine();
+        out.print("\n🗑 Enter the ID of the book to delete: ");
+        String bookId = readLine();
 
         if (library.hasBook(bookId)) {
             library.removeBook(bookId);
-            System.out.println(" Book deleted successfully.");
+            out.println(" Book deleted successfully.");
         } else {
-            System.out.println(" Book not found or couldn't be deleted.");
+            out.println(" Book not found or couldn't be deleted.");
         }
     }
 
@@ -250,40 +486,40 @@ public class ConsoleUI {
 
         if(library.booksSize() == 0)
         {
-            System.out.println("There are no books to edit.");
+            out.println("There are no books to edit.");
             return;
         }
 
-        System.out.print("\n Enter the ID of the book to edit: ");
-        String bookId = scanner.nextLine();
+        out.print("\n Enter the ID of the book to edit: ");
+        String bookId = readLine();
 
         Book book = LibrarySystem.getInstance().findBookById(bookId);
         if (book == null) {
-            System.out.println(" Book not found.");
+            out.println(" Book not found.");
             return;
         }
 
-        System.out.println("Editing Book: " + book.getTitle());
+        out.println("Editing Book: " + book.getTitle());
 
-        System.out.print("Enter new title (or press Enter to keep '" + book.getTitle() + "'): ");
-        String title = scanner.nextLine();
-        if (!title.isBlank()) book.setTitle(title);
+        out.print("Enter new title (or press Enter to keep '" + book.getTitle() + "'): ");
+        String title = readLine();
 
-        System.out.print("Enter new author (or press Enter to keep '" + book.getAuthor() + "'): ");
-        String author = scanner.nextLine();
-        if (!author.isBlank()) book.setAuthor(author);
+        out.print("Enter new author (or press Enter to keep '" + book.getAuthor() + "'): ");
+        String author = readLine();
 
-        System.out.print("Enter new genre (or press Enter to keep '" + book.getGenre() + "'): ");
-        String genre = scanner.nextLine();
-        if (!genre.isBlank()) book.setGenre(genre);
+        out.print("Enter new genre (or press Enter to keep '" + book.getGenre() + "'): ");
+        String genre = readLine();
 
-        System.out.print("Enter new available copies (or -1 to keep '" + book.getAvailableCopies() + "'): ");
-        int copies = scanner.nextInt();
-        scanner.nextLine(); // consume newline
-        if (copies != -1) book.setAvailableCopies(copies);
+        out.print("Enter new available copies (or -1 to keep '" + book.getAvailableCopies() + "'): ");
+        int copies = readInt();
 
+        library.editBook(book,
+                title.isBlank() ? null : title,
+                author.isBlank() ? null : author,
+                genre.isBlank() ? null : genre,
+                copies);
 
-        System.out.println(" Book updated successfully!");
+        out.println(" Book updated successfully!");
     }
 
 }
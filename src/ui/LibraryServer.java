@@ -0,0 +1,117 @@
+package ui;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Serves the console menus over TCP, one line of input per prompt, so any number of
+// terminals (telnet, nc, a front-desk client) can use the same LibrarySystem at once.
+// Each connection gets its own ConsoleUI on a virtual thread; LibrarySystem's locks are
+// ReentrantLocks, so a session blocked on one doesn't hold on to a carrier thread.
+public class LibraryServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sessionNumber = new AtomicLong();
+    private volatile boolean running = true;
+
+    // Where sessions may export to; null turns exporting off for them
+    private final Path exportRoot;
+
+    // Port 0 picks a free port; see getPort()
+    public LibraryServer(String host, int port) throws IOException {
+        this(host, port, null);
+    }
+
+    public LibraryServer(String host, int port, Path exportRoot) throws IOException {
+        this.exportRoot = exportRoot;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(host, port), 512);
+        acceptor = new Thread(this::acceptLoop, "library-server");
+    }
+
+    public void start() {
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int activeSessions() {
+        return sessions.size();
+    }
+
+    // Blocks until the server is closed
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) System.out.println("Accepting a connection failed: " + e.getMessage());
+                continue;
+            }
+            sessions.add(socket);
+            Thread.ofVirtual().name("session-" + sessionNumber.incrementAndGet()).start(() -> serve(socket));
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 8192),
+                    false, StandardCharsets.UTF_8);
+            try {
+                new ConsoleUI(socket.getInputStream(), out, exportRoot, true).handleWelcomeMenu();
+            } finally {
+                out.flush();
+            }
+        } catch (NoSuchElementException | IOException e) {
+            // the client hung up, or the server is closing
+        } catch (Exception e) {
+            System.out.println("Session on " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } finally {
+            sessions.remove(socket);
+        }
+    }
+
+    // Stops accepting and disconnects every session
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Socket socket : sessions) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ui;
+
+import services.Page;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+// Steps through a paged query: next, previous and jump to a page number. Remembers where each
+// visited page starts, so going back is one fetch; jumping ahead walks the pages in between
+// without rendering them.
+final class Pager<T> {
+
+    private final Function<String, Page<T>> pages;
+    // the cursor each visited page was fetched with; null for the first
+    private final List<String> starts = new ArrayList<>();
+    private Page<T> current;
+    private int index = 0;
+
+    Pager(Function<String, Page<T>> pages) {
+        this.pages = pages;
+        starts.add(null);
+        current = pages.apply(null);
+    }
+
+    // Pages over an in-memory list; the cursor is the index of the last item shown
+    static <T> Function<String, Page<T>> ofList(List<T> items, int size) {
+        return after -> {
+            int from = after == null ? 0 : Integer.parseInt(after) + 1;
+            int to = Math.min(items.size(), from + size);
+            List<T> slice = from >= to ? List.of() : items.subList(from, to);
+            return new Page<>(slice, to < items.size() ? String.valueOf(to - 1) : null);
+        };
+    }
+
+    Page<T> current() {
+        return current;
+    }
+
+    int pageNumber() {
+        return index + 1;
+    }
+
+    boolean next() {
+        if (!current.hasMore()) return false;
+        index++;
+        if (index == starts.size()) starts.add(current.nextCursor());
+        current = pages.apply(starts.get(index));
+        return true;
+    }
+
+    boolean previous() {
+        if (index == 0) return false;
+        index--;
+        current = pages.apply(starts.get(index));
+        return true;
+    }
+
+    // False if there are fewer pages; the last one is shown then
+    boolean jump(int pageNumber) {
+        int target = pageNumber - 1;
+        if (target < 0) return false;
+        if (target < starts.size()) {
+            index = target;
+            current = pages.apply(starts.get(index));
+            return true;
+        }
+        if (index != starts.size() - 1) {
+            index = starts.size() - 1;
+            current = pages.apply(starts.get(index));
+        }
+        while (index < target) {
+            if (!next()) return false;
+        }
+        return true;
+    }
+}
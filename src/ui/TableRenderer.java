@@ -0,0 +1,82 @@
+package ui;
+
+import java.io.PrintStream;
+
+// Writes fixed-width table rows. Cells are padded straight into one reused buffer (no format
+// strings to parse) and the buffer goes out in large chunks, so a long listing costs a few
+// writes instead of a synchronized printf per row.
+final class TableRenderer {
+
+    private static final int CHUNK = 32 * 1024;
+
+    private final PrintStream out;
+    private final String[] headers;
+    private final int[] widths;
+    private final StringBuilder buffer = new StringBuilder(CHUNK + 1024);
+    private int column = 0;
+
+    // headers and widths in pairs: "ID", 10, "Title", 25, ...
+    TableRenderer(PrintStream out, Object... headersAndWidths) {
+        this.out = out;
+        headers = new String[headersAndWidths.length / 2];
+        widths = new int[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = (String) headersAndWidths[2 * i];
+            widths[i] = (Integer) headersAndWidths[2 * i + 1];
+        }
+    }
+
+    TableRenderer line(String text) {
+        buffer.append(text).append('\n');
+        return this;
+    }
+
+    TableRenderer header() {
+        int total = 0;
+        for (int i = 0; i < headers.length; i++) {
+            cell(headers[i]);
+            total += widths[i] + (i > 0 ? 3 : 0);
+        }
+        endRow();
+        for (int i = 0; i < total; i++) buffer.append('-');
+        buffer.append('\n');
+        return this;
+    }
+
+    TableRenderer cell(String value) {
+        separate();
+        if (value == null) value = "null";
+        buffer.append(value);
+        pad(widths[column++] - value.length());
+        return this;
+    }
+
+    TableRenderer cell(int value) {
+        separate();
+        int start = buffer.length();
+        buffer.append(value);
+        pad(widths[column++] - (buffer.length() - start));
+        return this;
+    }
+
+    void endRow() {
+        buffer.append('\n');
+        column = 0;
+        if (buffer.length() >= CHUNK) flush();
+    }
+
+    // Hands what is buffered to the stream
+    void flush() {
+        if (buffer.isEmpty()) return;
+        out.append(buffer);
+        buffer.setLength(0);
+    }
+
+    private void separate() {
+        if (column > 0) buffer.append(" | ");
+    }
+
+    private void pad(int spaces) {
+        for (int i = 0; i < spaces; i++) buffer.append(' ');
+    }
+}